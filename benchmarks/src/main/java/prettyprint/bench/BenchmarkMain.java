@@ -0,0 +1,19 @@
+package prettyprint.bench;
+
+import java.util.Arrays;
+
+// Запускает JMH с профилировщиком gc (gc.alloc.rate.norm - байт на операцию), если профилировщик не задан явно
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        if (Arrays.asList(args).contains("-prof")) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        String[] withGc = new String[args.length + 2];
+        withGc[0] = "-prof";
+        withGc[1] = "gc";
+        System.arraycopy(args, 0, withGc, 2, args.length);
+        org.openjdk.jmh.Main.main(withGc);
+    }
+}
@@ -0,0 +1,104 @@
+package prettyprint.bench;
+
+import java.util.Random;
+
+// Детерминированные документы заданного размера (в символах) разной формы
+public class CorpusGenerator {
+
+    public enum Shape {
+        DEEP,          // глубокая вложенность, мало текста
+        WIDE,          // плоский список элементов с атрибутами
+        TEXT,          // длинные абзацы текста с сущностями и элементами в строке
+        COMMENT_CDATA, // много комментариев и CDATA-секций
+        MALFORMED      // незакрытые и лишние теги, для режима восстановления
+    }
+
+    private static final String[] WORDS = {"lorem", "ipsum", "dolor", "sit", "amet", "&", "'quoted'", "\"x\"", "данные", "é"};
+
+    public static String generate(Shape shape, int size) {
+        Random random = new Random(42);
+        StringBuilder xml = new StringBuilder(size + 1024);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<root>\n");
+        while (xml.length() < size) {
+            switch (shape) {
+                case DEEP:
+                    appendDeep(xml, random);
+                    break;
+                case WIDE:
+                    appendWide(xml, random);
+                    break;
+                case TEXT:
+                    appendText(xml, random);
+                    break;
+                case COMMENT_CDATA:
+                    appendCommentsAndCdata(xml, random);
+                    break;
+                case MALFORMED:
+                    appendMalformed(xml, random);
+                    break;
+            }
+        }
+        return xml.append("</root>\n").toString();
+    }
+
+    private static void appendDeep(StringBuilder xml, Random random) {
+        int depth = 50 + random.nextInt(150);
+        for (int i = 0; i < depth; i++) {
+            xml.append("<level").append(i).append(" n=\"").append(i).append("\">");
+        }
+        xml.append("<leaf>").append(word(random)).append("</leaf>");
+        for (int i = depth - 1; i >= 0; i--) {
+            xml.append("</level").append(i).append('>');
+        }
+        xml.append('\n');
+    }
+
+    private static void appendWide(StringBuilder xml, Random random) {
+        int id = random.nextInt(1_000_000);
+        xml.append("  <item id=\"").append(id).append("\" type=\"t").append(id % 7).append("\">")
+                .append("<name>").append(word(random)).append(' ').append(word(random)).append("</name>")
+                .append("<value>").append(random.nextInt(10_000) / 100.0).append("</value>")
+                .append("<flag/></item>\n");
+    }
+
+    private static void appendText(StringBuilder xml, Random random) {
+        xml.append("  <p>");
+        int words = 40 + random.nextInt(80);
+        for (int i = 0; i < words; i++) {
+            if (i % 17 == 16) {
+                xml.append("<em>").append(word(random)).append("</em>");
+            } else {
+                xml.append(word(random)).append(' ');
+            }
+        }
+        xml.append("</p>\n");
+    }
+
+    private static void appendCommentsAndCdata(StringBuilder xml, Random random) {
+        xml.append("  <!-- ").append(word(random)).append(" <not-a-tag> -->\n")
+                .append("  <script><![CDATA[ if (a < b && c > d) { x = \"]]\"; } ]]></script>\n")
+                .append("  <!--\n    multi-line ").append(word(random)).append("\n  -->\n")
+                .append("  <data><![CDATA[").append(word(random)).append("]]></data>\n");
+    }
+
+    private static void appendMalformed(StringBuilder xml, Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                xml.append("<open><child>").append(word(random)).append("</open>\n"); // child не закрыт
+                break;
+            case 1:
+                xml.append("<a><b>").append(word(random)).append("</b></stray></a>\n"); // лишний закрывающий тег
+                break;
+            case 2:
+                xml.append("<x><y><z>").append(word(random)).append("</x>\n"); // закрыт только внешний тег
+                break;
+            default:
+                xml.append("<ok attr=\"1\">").append(word(random)).append("</ok>\n");
+                break;
+        }
+    }
+
+    private static String word(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+}
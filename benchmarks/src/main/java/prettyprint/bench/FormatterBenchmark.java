@@ -0,0 +1,81 @@
+package prettyprint.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import prettyprint.RepairXmlFormatter;
+import prettyprint.SimpleXMLPrettyPrinter;
+import prettyprint.SimpleXmlFormatter;
+import prettyprint.XmlToken;
+import prettyprint.XmlTokenCursor;
+import prettyprint.XmlTokenizer;
+
+// Корректные документы: все форматтеры и лексер отдельно на одних и тех же размерах.
+// Документы с ошибками - в MalformedBenchmark
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class FormatterBenchmark {
+
+    @Param({"DEEP", "WIDE", "TEXT", "COMMENT_CDATA"})
+    public CorpusGenerator.Shape shape;
+
+    @Param({"65536", "1048576", "8388608"})
+    public int size;
+
+    private String xml;
+    private double megabytes;
+    private final XmlTokenizer tokenizer = new XmlTokenizer();
+    private final SimpleXmlFormatter simple = new SimpleXmlFormatter(2);
+    private final RepairXmlFormatter repair = new RepairXmlFormatter(2);
+    private final SimpleXMLPrettyPrinter legacy = new SimpleXMLPrettyPrinter(2);
+
+    @Setup
+    public void setUp() {
+        xml = CorpusGenerator.generate(shape, size);
+        megabytes = xml.getBytes(StandardCharsets.UTF_8).length / 1e6;
+    }
+
+    @Benchmark
+    public void tokenizer(MegabytesCounter counter, Blackhole blackhole) {
+        XmlTokenCursor tokens = tokenizer.cursor(xml);
+        while (tokens.hasNext()) {
+            XmlToken token = tokens.next();
+            blackhole.consume(token);
+        }
+        counter.megabytes += megabytes;
+    }
+
+    @Benchmark
+    public String simple(MegabytesCounter counter) {
+        counter.megabytes += megabytes;
+        return simple.format(xml);
+    }
+
+    @Benchmark
+    public String repair(MegabytesCounter counter) {
+        counter.megabytes += megabytes;
+        return repair.format(xml);
+    }
+
+    // Старый SimpleXMLPrettyPrinter работает на общем лексере за линейное время, поэтому идёт на тех же размерах
+    @Benchmark
+    public String legacy(MegabytesCounter counter) {
+        counter.megabytes += megabytes;
+        return legacy.format(xml);
+    }
+}
@@ -0,0 +1,62 @@
+package prettyprint.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import prettyprint.RepairXmlFormatter;
+import prettyprint.XmlToken;
+import prettyprint.XmlTokenCursor;
+import prettyprint.XmlTokenizer;
+
+// Документы с незакрытыми и лишними тегами - только для режима восстановления. Форматтеры без него
+// (SimpleXmlFormatter, SimpleXMLPrettyPrinter) на таком входе уходят всё глубже, и отступы делают
+// результат квадратичным по размеру: на 8 МБ он не помещается в память
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class MalformedBenchmark {
+
+    @Param({"65536", "1048576", "8388608"})
+    public int size;
+
+    private String xml;
+    private double megabytes;
+    private final XmlTokenizer tokenizer = new XmlTokenizer();
+    private final RepairXmlFormatter repair = new RepairXmlFormatter(2);
+
+    @Setup
+    public void setUp() {
+        xml = CorpusGenerator.generate(CorpusGenerator.Shape.MALFORMED, size);
+        megabytes = xml.getBytes(StandardCharsets.UTF_8).length / 1e6;
+    }
+
+    @Benchmark
+    public void tokenizer(MegabytesCounter counter, Blackhole blackhole) {
+        XmlTokenCursor tokens = tokenizer.cursor(xml);
+        while (tokens.hasNext()) {
+            XmlToken token = tokens.next();
+            blackhole.consume(token);
+        }
+        counter.megabytes += megabytes;
+    }
+
+    @Benchmark
+    public String repair(MegabytesCounter counter) {
+        counter.megabytes += megabytes;
+        return repair.format(xml);
+    }
+}
@@ -0,0 +1,353 @@
+package prettyprint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Издатель отформатированного документа поверх издателя его частей (XmlFormatter.format(Flow.Publisher)).
+// Каждая подписка - отдельный документ: у источника запрашивается по одной части, и только когда подписчик
+// готов принять результат, поэтому в памяти держатся одна часть входа, её результат и окно лексера.
+// Все сигналы сводятся в один цикл drain, который выполняется не более чем в одном потоке за раз
+final class AsyncXmlFormatter implements Flow.Publisher<ByteBuffer> {
+    private final Flow.Publisher<ByteBuffer> source;
+    private final XmlFormatter formatter;
+    private final Executor executor;
+
+    AsyncXmlFormatter(Flow.Publisher<ByteBuffer> source, XmlFormatter formatter, Executor executor) {
+        this.source = Objects.requireNonNull(source);
+        this.formatter = formatter;
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        source.subscribe(new Subscription(Objects.requireNonNull(subscriber)));
+    }
+
+    private final class Subscription implements Flow.Subscription, Flow.Subscriber<ByteBuffer>, Runnable {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final Queue<ByteBuffer> parts = new ConcurrentLinkedQueue<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger signals = new AtomicInteger();
+        private volatile Flow.Subscription upstream;
+        private volatile boolean sourceDone;
+        private volatile Throwable sourceError;
+        private volatile boolean cancelled;
+        private volatile long badRequest;
+
+        // Дальше - только внутри drain
+        private final Document document = new Document();
+        private ByteBuffer output;
+        private boolean partRequested;
+        private boolean lastPart;
+        private boolean done;
+
+        Subscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            if (upstream != null) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+            subscriber.onSubscribe(this);
+        }
+
+        @Override
+        public void onNext(ByteBuffer part) {
+            parts.add(part);
+            signal();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            sourceError = error;
+            sourceDone = true;
+            signal();
+        }
+
+        @Override
+        public void onComplete() {
+            sourceDone = true;
+            signal();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = n;
+            } else {
+                requested.getAndAccumulate(n, (current, more) -> current + more < 0 ? Long.MAX_VALUE : current + more);
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            upstream.cancel();
+            signal();
+        }
+
+        // Первый сигнал запускает drain, остальные только отмечаются: drain повторит проход, пока они есть
+        private void signal() {
+            if (signals.getAndIncrement() != 0) {
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                upstream.cancel();
+                document.release();
+                done = true;
+                subscriber.onError(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = signals.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (done) {
+                parts.clear();
+                return;
+            }
+            try {
+                while (!cancelled) {
+                    if (badRequest != 0) {
+                        upstream.cancel();
+                        fail(new IllegalArgumentException("Request must be positive: " + badRequest));
+                        return;
+                    }
+                    if (output != null) {
+                        if (requested.get() == 0) {
+                            return;
+                        }
+                        if (requested.get() != Long.MAX_VALUE) {
+                            requested.decrementAndGet();
+                        }
+                        ByteBuffer chunk = output;
+                        output = null;
+                        subscriber.onNext(chunk);
+                        continue;
+                    }
+                    ByteBuffer part = parts.poll();
+                    if (part != null) {
+                        partRequested = false;
+                        output = nonEmpty(document.part(part));
+                        continue;
+                    }
+                    if (sourceDone) {
+                        if (sourceError != null) {
+                            fail(sourceError);
+                            return;
+                        }
+                        if (!lastPart) {
+                            lastPart = true;
+                            output = nonEmpty(document.finish());
+                            continue;
+                        }
+                        done = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+                    if (partRequested || requested.get() == 0) {
+                        return;
+                    }
+                    partRequested = true;
+                    upstream.request(1);
+                }
+                done = true;
+                document.release();
+            } catch (IOException | RuntimeException e) {
+                upstream.cancel();
+                fail(e instanceof UncheckedIOException ? e.getCause() : e);
+            }
+        }
+
+        private void fail(Throwable error) {
+            done = true;
+            document.release();
+            subscriber.onError(error);
+        }
+    }
+
+    private static ByteBuffer nonEmpty(ByteBuffer chunk) {
+        return chunk != null && chunk.hasRemaining() ? chunk : null;
+    }
+
+    // Один документ между частями. Кодировка определяется по началу входа так же, как в format(byte[]),
+    // после этого части идут через FeedReader в лексер, а результат каждой части снимается с приёмника.
+    // Без состояния для продолжения (resumable вернул null) части копятся в head, и весь документ
+    // форматируется синхронным format(ByteBuffer) в finish
+    private final class Document {
+        private final XmlFormatter.Resumable state = formatter.resumable();
+        private final FormatMetrics metrics = state != null ? formatter.startMetrics(null) : null;
+        private Latin1Writer head = new Latin1Writer(64); // начало входа, пока кодировка не ясна
+        private int scanned;
+        private int markLength;
+        private FeedReader in;
+        private XmlTokenCursor tokens;
+        private XmlOutput out;
+        private Latin1Writer bytes;
+        private ByteArrayOutputStream encoded;
+        private Writer encoder;
+        private long nanos;
+
+        ByteBuffer part(ByteBuffer xml) throws IOException {
+            long start = metrics != null ? System.nanoTime() : 0;
+            if (state == null) {
+                head.write(xml);
+                return null;
+            }
+            if (in == null) {
+                head.write(xml);
+                Charset charset = detect(head.toByteBuffer(), false);
+                if (charset == null) {
+                    return null;
+                }
+                start(charset);
+            } else {
+                in.feed(xml);
+            }
+            state.resume(tokens, out);
+            ByteBuffer result = take();
+            if (metrics != null) {
+                nanos += System.nanoTime() - start;
+            }
+            return result;
+        }
+
+        ByteBuffer finish() throws IOException {
+            if (state == null) {
+                ByteBuffer xml = head.toByteBuffer();
+                head = null;
+                return formatter.format(xml);
+            }
+            long start = metrics != null ? System.nanoTime() : 0;
+            if (in == null) {
+                start(detect(head.toByteBuffer(), true));
+            }
+            in.end();
+            state.resume(tokens, out);
+            state.finish(tokens, out);
+            out.finish();
+            ByteBuffer result = take();
+            if (metrics != null) {
+                metrics.finish(tokens.inputPosition(), out.position(), nanos + System.nanoTime() - start);
+                formatter.report(metrics, null);
+            }
+            release();
+            return result;
+        }
+
+        // Возвращает буферы лексера и приёмника; повторный вызов ничего не делает
+        void release() {
+            if (out != null) {
+                out.release();
+                tokens.release();
+                out = null;
+            }
+        }
+
+        // Кодировка по метке порядка байтов или по encoding в объявлении XML; null, пока байтов для решения мало.
+        // Кодировки, в которых разметку можно читать по байтам, обрабатываются как Latin-1
+        private Charset detect(ByteBuffer xml, boolean complete) {
+            if (xml.remaining() < 4 && !complete) {
+                return null;
+            }
+            Charset charset = XmlEncoding.fromByteOrderMark(xml);
+            if (charset != null) {
+                markLength = XmlEncoding.byteOrderMarkLength(xml, charset);
+                return XmlEncoding.isAsciiTransparent(charset) ? StandardCharsets.ISO_8859_1 : charset;
+            }
+            int end = xml.limit();
+            int declaration = xml.position();
+            while (declaration < end && (xml.get(declaration) & 0xFF) <= ' ') {
+                declaration++;
+            }
+            String prefix = "<?xml";
+            for (int i = 0; i < prefix.length(); i++) {
+                if (declaration + i == end) {
+                    return complete ? StandardCharsets.ISO_8859_1 : null;
+                }
+                if (xml.get(declaration + i) != prefix.charAt(i)) {
+                    return StandardCharsets.ISO_8859_1;
+                }
+            }
+            // Объявление дочитывается до '>' без повторного просмотра уже пришедших байтов
+            int close = Math.max(scanned, declaration + prefix.length());
+            while (close < end && xml.get(close) != '>') {
+                close++;
+            }
+            scanned = close;
+            if (close == end) {
+                return complete ? StandardCharsets.ISO_8859_1 : null;
+            }
+            byte[] text = new byte[close + 1 - declaration];
+            xml.duplicate().position(declaration).get(text);
+            // Неизвестная кодировка - как в XmlFormatter.format(byte[]): по байтам, как UTF-8
+            Charset declared = XmlEncoding.declaredCharset(new String(text, StandardCharsets.ISO_8859_1));
+            if (declared == null || XmlEncoding.isAsciiTransparent(declared)) {
+                return StandardCharsets.ISO_8859_1;
+            }
+            return declared;
+        }
+
+        private void start(Charset charset) throws IOException {
+            ByteBuffer xml = head.toByteBuffer();
+            head = null;
+            ByteBuffer mark = xml.slice().limit(markLength);
+            xml.position(xml.position() + markLength);
+            Writer sink;
+            if (charset == StandardCharsets.ISO_8859_1) {
+                in = new FeedReader();
+                bytes = new Latin1Writer(Math.max(xml.remaining() + xml.remaining() / 4, 1024));
+                bytes.write(mark);
+                sink = bytes;
+            } else {
+                in = new FeedReader(charset);
+                encoded = new ByteArrayOutputStream(Math.max(xml.remaining() + xml.remaining() / 4, 1024));
+                encoded.write(mark.array(), mark.arrayOffset(), mark.remaining());
+                encoder = new OutputStreamWriter(encoded, charset.newEncoder());
+                sink = encoder;
+            }
+            in.feed(xml);
+            tokens = new XmlTokenCursor(new XmlLexer(in), metrics, formatter.options.tokenFilter(), true);
+            out = new XmlOutput(sink, formatter.options, true);
+        }
+
+        private ByteBuffer take() throws IOException {
+            out.flush();
+            if (bytes != null) {
+                return bytes.take();
+            }
+            encoder.flush();
+            ByteBuffer result = ByteBuffer.wrap(encoded.toByteArray());
+            encoded.reset();
+            return result;
+        }
+    }
+}
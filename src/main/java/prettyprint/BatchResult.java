@@ -0,0 +1,35 @@
+package prettyprint;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+
+// Итог пакетного форматирования каталога: ошибки по отдельным файлам не прерывают обход, а собираются здесь
+public class BatchResult {
+    public final int files;
+    public final int changedFiles;
+    public final long bytesRead;
+    public final long bytesWritten;
+    public final Duration elapsed;
+    public final Map<Path, Exception> errors;
+
+    BatchResult(int files, int changedFiles, long bytesRead, long bytesWritten, Duration elapsed,
+                Map<Path, Exception> errors) {
+        this.files = files;
+        this.changedFiles = changedFiles;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.elapsed = elapsed;
+        this.errors = errors;
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files (%d changed, %d failed), %d bytes read, %d bytes written in %d ms",
+                files, changedFiles, errors.size(), bytesRead, bytesWritten, elapsed.toMillis());
+    }
+}
@@ -0,0 +1,119 @@
+package prettyprint;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+// Пишет в канал через один переиспользуемый прямой буфер: символы копятся в char[],
+// кодируются пачкой и уходят в канал без промежуточных String и byte[]
+class ChannelWriter extends Writer {
+    private static final int CHAR_BUFFER_SIZE = 64 * 1024;
+    private static final int BYTE_BUFFER_SIZE = 256 * 1024;
+
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final char[] chars = new char[CHAR_BUFFER_SIZE];
+    private final CharBuffer charBuffer = CharBuffer.wrap(chars);
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+    private int count;
+    private boolean closed;
+
+    ChannelWriter(WritableByteChannel channel) {
+        this(channel, StandardCharsets.UTF_8);
+    }
+
+    ChannelWriter(WritableByteChannel channel, Charset charset) {
+        this.channel = channel;
+        this.encoder = charset.newEncoder();
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == chars.length) {
+                encodeChars(false);
+            }
+            int n = Math.min(len, chars.length - count);
+            System.arraycopy(cbuf, off, chars, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == chars.length) {
+                encodeChars(false);
+            }
+            int n = Math.min(len, chars.length - count);
+            str.getChars(off, off + n, chars, count);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (count == chars.length) {
+            encodeChars(false);
+        }
+        chars[count++] = (char) c;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        encodeChars(false);
+        drainBytes();
+    }
+
+    // Завершает кодирование; сам канал закрывает его владелец
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        encodeChars(true);
+        while (encoder.flush(bytes).isOverflow()) {
+            drainBytes();
+        }
+        drainBytes();
+    }
+
+    private void encodeChars(boolean endOfInput) throws IOException {
+        charBuffer.limit(count).position(0);
+        while (true) {
+            CoderResult result = encoder.encode(charBuffer, bytes, endOfInput);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (result.isOverflow()) {
+                drainBytes();
+            } else {
+                break;
+            }
+        }
+        // Незакодированный хвост (половина суррогатной пары) переносим в начало буфера
+        int remaining = charBuffer.remaining();
+        System.arraycopy(chars, charBuffer.position(), chars, 0, remaining);
+        count = remaining;
+        charBuffer.clear();
+    }
+
+    private void drainBytes() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        bytes.clear();
+    }
+}
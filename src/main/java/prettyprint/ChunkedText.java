@@ -0,0 +1,168 @@
+package prettyprint;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+// Результат форматирования в памяти без одного большого массива (XmlPrettyPrinter.formatFileChunked): текст
+// лежит в кусках по CHUNK_SIZE символов, дописывается без перекопирования уже записанного и не упирается
+// в предел длины String в 2^31 символов. Пишется в Writer или канал и обходится по кускам без склейки;
+// toString() склеивает, только если его вызвать явно. Пробелы в начале и в конце документа отбрасывает
+// XmlOutput ещё при записи, поэтому хвост потом не обрезается копированием
+public final class ChunkedText implements CharSequence, Appendable {
+    static final int CHUNK_BITS = 16;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final List<char[]> chunks = new ArrayList<>();
+    private long length;
+
+    // Длина без ограничения int; length() бросает исключение, если текст длиннее Integer.MAX_VALUE
+    public long longLength() {
+        return length;
+    }
+
+    @Override
+    public int length() {
+        return toInt(length);
+    }
+
+    @Override
+    public char charAt(int index) {
+        return charAt((long) index);
+    }
+
+    public char charAt(long index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        return chunks.get((int) (index >>> CHUNK_BITS))[(int) (index & CHUNK_MASK)];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return subSequence((long) start, end);
+    }
+
+    // Копирует только запрошенный кусок
+    public String subSequence(long start, long end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        }
+        char[] result = new char[toInt(end - start)];
+        int at = 0;
+        while (start < end) {
+            char[] chunk = chunks.get((int) (start >>> CHUNK_BITS));
+            int from = (int) (start & CHUNK_MASK);
+            int n = (int) Math.min(end - start, CHUNK_SIZE - from);
+            System.arraycopy(chunk, from, result, at, n);
+            at += n;
+            start += n;
+        }
+        return new String(result);
+    }
+
+    // Куски только для чтения, по порядку; все, кроме последнего, полные
+    public List<CharBuffer> chunks() {
+        List<CharBuffer> result = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            result.add(CharBuffer.wrap(chunks.get(i), 0, chunkLength(i)).asReadOnlyBuffer());
+        }
+        return result;
+    }
+
+    public void writeTo(Writer out) throws IOException {
+        for (int i = 0; i < chunks.size(); i++) {
+            out.write(chunks.get(i), 0, chunkLength(i));
+        }
+    }
+
+    // Кодирует через один буфер ChannelWriter, без промежуточных String и byte[]; канал остаётся открытым
+    public void writeTo(WritableByteChannel channel, Charset charset) throws IOException {
+        ChannelWriter writer = new ChannelWriter(channel, charset);
+        writeTo(writer);
+        writer.close();
+    }
+
+    @Override
+    public ChunkedText append(CharSequence text) {
+        CharSequence chars = text != null ? text : "null";
+        return append(chars, 0, chars.length());
+    }
+
+    @Override
+    public ChunkedText append(CharSequence text, int start, int end) {
+        CharSequence chars = text != null ? text : "null";
+        if (chars instanceof String) {
+            String string = (String) chars;
+            while (start < end) {
+                int n = Math.min(end - start, reserve());
+                string.getChars(start, start + n, last(), offset());
+                length += n;
+                start += n;
+            }
+        } else {
+            for (int i = start; i < end; i++) {
+                append(chars.charAt(i));
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public ChunkedText append(char c) {
+        reserve();
+        last()[offset()] = c;
+        length++;
+        return this;
+    }
+
+    // Прямая запись буфера XmlOutput
+    void append(char[] chars, int from, int count) {
+        while (count > 0) {
+            int n = Math.min(count, reserve());
+            System.arraycopy(chars, from, last(), offset(), n);
+            length += n;
+            from += n;
+            count -= n;
+        }
+    }
+
+    // Склеивает весь текст в одну строку; только для текста короче Integer.MAX_VALUE
+    @Override
+    public String toString() {
+        return subSequence(0L, length);
+    }
+
+    // Свободное место в последнем куске; полный кусок сменяется новым
+    private int reserve() {
+        int used = offset();
+        if (used == 0 && chunks.size() == length >>> CHUNK_BITS) {
+            chunks.add(new char[CHUNK_SIZE]);
+        }
+        return CHUNK_SIZE - used;
+    }
+
+    private char[] last() {
+        return chunks.get(chunks.size() - 1);
+    }
+
+    private int offset() {
+        return (int) (length & CHUNK_MASK);
+    }
+
+    private int chunkLength(int i) {
+        return i < chunks.size() - 1 ? CHUNK_SIZE : (int) (length - ((long) i << CHUNK_BITS));
+    }
+
+    private static int toInt(long length) {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Text of " + length + " chars does not fit in an int-indexed sequence");
+        }
+        return (int) length;
+    }
+}
@@ -0,0 +1,101 @@
+package prettyprint;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+
+// Приёмник для проверки без результата (XmlPrettyPrinter.checkFile): каждая пачка отформатированного текста
+// сразу сравнивается с очередным куском файла и дальше не хранится. После первого отличия остальное
+// не сравнивается, а differs() останавливает курсор форматтера (XmlTokenCursor.stopWhen), чтобы
+// форматирование не шло до конца документа
+class ComparingWriter extends Writer {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final Reader actual;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private boolean ended;
+
+    private FormatCheck difference;
+
+    private long offset; // символов совпало
+    private long line = 1;
+    private long column = 1;
+
+    ComparingWriter(Reader actual) {
+        this.actual = actual;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        while (len > 0 && difference == null) {
+            if (position == limit && !fill()) {
+                difference = here();
+                return;
+            }
+            int n = Math.min(len, limit - position);
+            int mismatch = Arrays.mismatch(cbuf, off, off + n, buffer, position, position + n);
+            advance(cbuf, off, mismatch < 0 ? n : mismatch);
+            if (mismatch >= 0) {
+                difference = here();
+                return;
+            }
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    boolean differs() {
+        return difference != null;
+    }
+
+    // Результат форматирования кончился: файл отформатирован, если отличий не было и кончился и он
+    FormatCheck finish() throws IOException {
+        if (difference != null) {
+            return difference;
+        }
+        return position == limit && !fill() ? FormatCheck.FORMATTED : here();
+    }
+
+    private FormatCheck here() {
+        return new FormatCheck(offset, line, column);
+    }
+
+    private boolean fill() throws IOException {
+        if (ended) {
+            return false;
+        }
+        int n = actual.read(buffer);
+        if (n < 0) {
+            ended = true;
+            return false;
+        }
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    // Совпавшие символы сдвигают строку и столбец отличия
+    private void advance(char[] chars, int from, int count) {
+        for (int i = from; i < from + count; i++) {
+            if (chars[i] == '\n') {
+                line++;
+                column = 1;
+            } else {
+                column++;
+            }
+        }
+        offset += count;
+    }
+}
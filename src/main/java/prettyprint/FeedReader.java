@@ -0,0 +1,123 @@
+package prettyprint;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayDeque;
+
+// Вход, который приходит частями: read отдаёт то, что уже пришло, а пока следующей части нет, возвращает 0
+// вместо блокировки. XmlLexer понимает 0 как "ждать", а не как конец входа.
+// Без decoder байты читаются как Latin-1, как в Latin1Reader; с decoder части декодируются сразу при
+// получении, а неполная многобайтовая последовательность в конце части ждёт начала следующей
+class FeedReader extends Reader {
+    private final CharsetDecoder decoder;
+    private final ArrayDeque<ByteBuffer> bytes = new ArrayDeque<>();
+    private final ArrayDeque<CharBuffer> chars = new ArrayDeque<>();
+    private ByteBuffer carry;
+    private boolean closed;
+
+    FeedReader() {
+        this.decoder = null;
+    }
+
+    FeedReader(Charset charset) {
+        this.decoder = charset.newDecoder();
+    }
+
+    void feed(ByteBuffer part) throws CharacterCodingException {
+        if (decoder == null) {
+            if (part.hasRemaining()) {
+                bytes.add(part);
+            }
+            return;
+        }
+        ByteBuffer in = part;
+        if (carry != null) {
+            in = ByteBuffer.allocate(carry.remaining() + part.remaining()).put(carry).put(part).flip();
+            carry = null;
+        }
+        decode(in, false);
+        if (in.hasRemaining()) {
+            carry = ByteBuffer.allocate(in.remaining()).put(in).flip();
+        }
+    }
+
+    // Больше частей не будет: после того как пришедшее прочитано, read вернёт -1
+    void end() throws CharacterCodingException {
+        closed = true;
+        if (decoder != null) {
+            decode(carry != null ? carry : ByteBuffer.allocate(0), true);
+            carry = null;
+            CharBuffer out = CharBuffer.allocate(16);
+            decoder.flush(out);
+            if (out.flip().hasRemaining()) {
+                chars.add(out);
+            }
+        }
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        int n = decoder == null ? readLatin1(cbuf, off, len) : readChars(cbuf, off, len);
+        return n == 0 && closed && len > 0 ? -1 : n;
+    }
+
+    private int readLatin1(char[] cbuf, int off, int len) {
+        int n = 0;
+        while (n < len && !bytes.isEmpty()) {
+            ByteBuffer part = bytes.peek();
+            int chunk = Math.min(len - n, part.remaining());
+            int position = part.position();
+            if (part.hasArray()) {
+                byte[] array = part.array();
+                int from = part.arrayOffset() + position;
+                for (int i = 0; i < chunk; i++) {
+                    cbuf[off + n + i] = (char) (array[from + i] & 0xFF);
+                }
+            } else {
+                for (int i = 0; i < chunk; i++) {
+                    cbuf[off + n + i] = (char) (part.get(position + i) & 0xFF);
+                }
+            }
+            part.position(position + chunk);
+            n += chunk;
+            if (!part.hasRemaining()) {
+                bytes.poll();
+            }
+        }
+        return n;
+    }
+
+    private int readChars(char[] cbuf, int off, int len) {
+        int n = 0;
+        while (n < len && !chars.isEmpty()) {
+            CharBuffer part = chars.peek();
+            int chunk = Math.min(len - n, part.remaining());
+            part.get(cbuf, off + n, chunk);
+            n += chunk;
+            if (!part.hasRemaining()) {
+                chars.poll();
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void decode(ByteBuffer in, boolean endOfInput) throws CharacterCodingException {
+        CharBuffer out = CharBuffer.allocate((int) (in.remaining() * (double) decoder.maxCharsPerByte()) + 1);
+        CoderResult result = decoder.decode(in, out, endOfInput);
+        if (result.isError()) {
+            result.throwException();
+        }
+        if (out.flip().hasRemaining()) {
+            chars.add(out);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package prettyprint;
+
+// Итог проверки XmlPrettyPrinter.checkFile: отформатирован ли файл, а если нет - где первое отличие
+// от результата форматирования. Строки и столбцы считаются с 1, столбец - в символах Java
+public final class FormatCheck {
+    static final FormatCheck FORMATTED = new FormatCheck(-1, -1, -1);
+
+    private final long offset;
+    private final long line;
+    private final long column;
+
+    FormatCheck(long offset, long line, long column) {
+        this.offset = offset;
+        this.line = line;
+        this.column = column;
+    }
+
+    public boolean isFormatted() {
+        return offset < 0;
+    }
+
+    // Номер первого отличающегося символа файла с 0 или -1, если отличий нет
+    public long offset() {
+        return offset;
+    }
+
+    public long line() {
+        return line;
+    }
+
+    public long column() {
+        return column;
+    }
+
+    @Override
+    public String toString() {
+        return isFormatted() ? "formatted" : "differs at line " + line + ", column " + column;
+    }
+}
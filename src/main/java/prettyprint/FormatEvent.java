@@ -0,0 +1,85 @@
+package prettyprint;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// Событие JDK Flight Recorder на каждый вызов format. Без запущенной записи загружается только jdk.jfr.Event
+@Name("prettyprint.Format")
+@Label("XML Format")
+@Category("PrettyPrint")
+@Description("One call to XmlFormatter.format")
+class FormatEvent extends Event {
+    @Label("Formatter")
+    String formatter;
+
+    @Label("Input Characters")
+    long inputChars;
+
+    @Label("Output Characters")
+    long outputChars;
+
+    @Label("Tokens")
+    long tokens;
+
+    @Label("Opening Tags")
+    long openingTags;
+
+    @Label("Text Tokens")
+    long textTokens;
+
+    @Label("Comments And CDATA")
+    long commentsAndCdata;
+
+    @Label("Max Depth")
+    int maxDepth;
+
+    @Label("Lexing Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long lexTime;
+
+    @Label("Emitting Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long emitTime;
+
+    @Label("Auto-Closed Tags")
+    int autoClosedTags;
+
+    @Label("Dropped Closing Tags")
+    int droppedClosingTags;
+
+    // null, если событие сейчас не записывается
+    static FormatEvent beginIfEnabled() {
+        // Пока JFR не запущен, класс события не инструментирован и isEnabled просто возвращает false.
+        // FlightRecorder.isInitialized здесь не годится: он сам загружает около сотни классов JFR
+        FormatEvent event = new FormatEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    void commit(FormatMetrics metrics) {
+        end();
+        if (!shouldCommit()) {
+            return;
+        }
+        formatter = metrics.formatter();
+        inputChars = metrics.inputChars();
+        outputChars = metrics.outputChars();
+        tokens = metrics.tokenCount();
+        openingTags = metrics.tokenCount(XmlToken.TokenType.OPENING_TAG);
+        textTokens = metrics.tokenCount(XmlToken.TokenType.TEXT);
+        commentsAndCdata = metrics.tokenCount(XmlToken.TokenType.COMMENT) + metrics.tokenCount(XmlToken.TokenType.CDATA);
+        maxDepth = metrics.maxDepth();
+        lexTime = metrics.lexNanos();
+        emitTime = metrics.emitNanos();
+        autoClosedTags = metrics.autoClosedTags();
+        droppedClosingTags = metrics.droppedClosingTags();
+        commit();
+    }
+}
@@ -0,0 +1,6 @@
+package prettyprint;
+
+// Получает метрики после каждого вызова format; вызывается в потоке, который форматировал
+public interface FormatListener {
+    void formatted(FormatMetrics metrics);
+}
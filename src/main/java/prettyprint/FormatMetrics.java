@@ -0,0 +1,108 @@
+package prettyprint;
+
+// Метрики одного вызова format. Собираются, только если к форматтеру подключён FormatListener
+// или идёт запись JFR, поэтому без наблюдателей форматирование ничего не измеряет.
+// Размеры входа и результата считаются в символах: байтовый размер зависит от кодировки вызывающего кода.
+public final class FormatMetrics {
+    private final String formatter;
+    private final long[] tokenCounts = new long[XmlToken.TokenType.values().length];
+    private int depth;
+    private int maxDepth;
+    private long lexNanos;
+    private long totalNanos;
+    private long inputChars;
+    private long outputChars;
+    private int autoClosedTags;
+    private int droppedClosingTags;
+
+    FormatMetrics(String formatter) {
+        this.formatter = formatter;
+    }
+
+    public String formatter() {
+        return formatter;
+    }
+
+    public long inputChars() {
+        return inputChars;
+    }
+
+    public long outputChars() {
+        return outputChars;
+    }
+
+    public long tokenCount(XmlToken.TokenType type) {
+        return tokenCounts[type.ordinal()];
+    }
+
+    public long tokenCount() {
+        long total = 0;
+        for (long count : tokenCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    public long lexNanos() {
+        return lexNanos;
+    }
+
+    // Время на всё, кроме разбора: решения форматтера и запись результата
+    public long emitNanos() {
+        return totalNanos - lexNanos;
+    }
+
+    public long totalNanos() {
+        return totalNanos;
+    }
+
+    // Только для RepairXmlFormatter: сколько тегов закрыто автоматически
+    public int autoClosedTags() {
+        return autoClosedTags;
+    }
+
+    // Только для RepairXmlFormatter: сколько закрывающих тегов без пары отброшено
+    public int droppedClosingTags() {
+        return droppedClosingTags;
+    }
+
+    void lexTime(long nanos) {
+        lexNanos += nanos;
+    }
+
+    void lexed(XmlToken.TokenType type) {
+        if (type == null) {
+            return;
+        }
+        tokenCounts[type.ordinal()]++;
+        if (type == XmlToken.TokenType.OPENING_TAG) {
+            maxDepth = Math.max(maxDepth, ++depth);
+        } else if (type == XmlToken.TokenType.CLOSING_TAG && depth > 0) {
+            depth--;
+        }
+    }
+
+    void autoClosed(int tags) {
+        autoClosedTags += tags;
+    }
+
+    void droppedClosingTag() {
+        droppedClosingTags++;
+    }
+
+    void finish(long inputChars, long outputChars, long totalNanos) {
+        this.inputChars = inputChars;
+        this.outputChars = outputChars;
+        this.totalNanos = totalNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d chars in, %d chars out, %d tokens, max depth %d, lex %d us, emit %d us",
+                formatter, inputChars, outputChars, tokenCount(), maxDepth, lexNanos / 1000, emitNanos() / 1000);
+    }
+}
@@ -0,0 +1,140 @@
+package prettyprint;
+
+// Настройки форматирования. Объект неизменяемый: каждый with-метод возвращает копию, поэтому один
+// экземпляр можно держать в константе и отдавать разным потокам.
+// Ограничения нужны для машинных документов с вложенностью в тысячи уровней: там отступы растут как
+// строки × глубина, и результат в десятки раз больше входа. По умолчанию ограничений нет
+public final class FormatOptions {
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+    public static final long UNLIMITED_OUTPUT = Long.MAX_VALUE;
+
+    public static final FormatOptions DEFAULT = new FormatOptions(false, 2, false, UNLIMITED, UNLIMITED,
+            UNLIMITED_OUTPUT, false, null);
+
+    private final boolean autoCloseTags;
+    private final int indentSpaces;
+    private final boolean tabs;
+    private final int maxIndentDepth;
+    private final int maxNesting;
+    private final long maxOutputChars;
+    private final boolean compactOnOverflow;
+    private final XmlTokenFilter tokenFilter;
+
+    private FormatOptions(boolean autoCloseTags, int indentSpaces, boolean tabs, int maxIndentDepth, int maxNesting,
+                          long maxOutputChars, boolean compactOnOverflow, XmlTokenFilter tokenFilter) {
+        this.autoCloseTags = autoCloseTags;
+        this.indentSpaces = indentSpaces;
+        this.tabs = tabs;
+        this.maxIndentDepth = maxIndentDepth;
+        this.maxNesting = maxNesting;
+        this.maxOutputChars = maxOutputChars;
+        this.compactOnOverflow = compactOnOverflow;
+        this.tokenFilter = tokenFilter;
+    }
+
+    public FormatOptions withAutoCloseTags(boolean autoCloseTags) {
+        return new FormatOptions(autoCloseTags, indentSpaces, tabs, maxIndentDepth, maxNesting, maxOutputChars,
+                compactOnOverflow, tokenFilter);
+    }
+
+    // Отступ пробелами; отменяет withTabs
+    public FormatOptions withIndent(int indentSpaces) {
+        requireNonNegative("indentSpaces", indentSpaces);
+        return new FormatOptions(autoCloseTags, indentSpaces, false, maxIndentDepth, maxNesting, maxOutputChars,
+                compactOnOverflow, tokenFilter);
+    }
+
+    // Один символ табуляции на уровень вместо indentSpaces пробелов
+    public FormatOptions withTabs() {
+        return new FormatOptions(autoCloseTags, indentSpaces, true, maxIndentDepth, maxNesting, maxOutputChars,
+                compactOnOverflow, tokenFilter);
+    }
+
+    // Уровни глубже maxIndentDepth получают отступ уровня maxIndentDepth: разметка сохраняется,
+    // но отступ одной строки больше не растёт с глубиной
+    public FormatOptions withMaxIndentDepth(int maxIndentDepth) {
+        requireNonNegative("maxIndentDepth", maxIndentDepth);
+        return new FormatOptions(autoCloseTags, indentSpaces, tabs, maxIndentDepth, maxNesting, maxOutputChars,
+                compactOnOverflow, tokenFilter);
+    }
+
+    // Открытый тег глубже maxNesting прерывает форматирование с XmlLimitExceededException
+    public FormatOptions withMaxNesting(int maxNesting) {
+        requireNonNegative("maxNesting", maxNesting);
+        return new FormatOptions(autoCloseTags, indentSpaces, tabs, maxIndentDepth, maxNesting, maxOutputChars,
+                compactOnOverflow, tokenFilter);
+    }
+
+    // Результат длиннее maxOutputChars символов прерывает форматирование с XmlLimitExceededException
+    // сразу, как только граница пройдена, а не после того, как весь результат собран в памяти
+    public FormatOptions withMaxOutputChars(long maxOutputChars) {
+        requireNonNegative("maxOutputChars", maxOutputChars);
+        return new FormatOptions(autoCloseTags, indentSpaces, tabs, maxIndentDepth, maxNesting, maxOutputChars,
+                compactOnOverflow, tokenFilter);
+    }
+
+    // Вместо исключения документ форматируется заново компактно (как minify), если вход можно перечитать:
+    // строка, байты или файл. Потоковый вывод к моменту ошибки уже частично записан, там остаётся исключение
+    public FormatOptions withCompactOnOverflow(boolean compactOnOverflow) {
+        return new FormatOptions(autoCloseTags, indentSpaces, tabs, maxIndentDepth, maxNesting, maxOutputChars,
+                compactOnOverflow, tokenFilter);
+    }
+
+    // Фильтр токенов в том же проходе (см. XmlTokenFilter); несколько фильтров соединяются через andThen,
+    // null - без фильтра
+    public FormatOptions withTokenFilter(XmlTokenFilter tokenFilter) {
+        return new FormatOptions(autoCloseTags, indentSpaces, tabs, maxIndentDepth, maxNesting, maxOutputChars,
+                compactOnOverflow, tokenFilter);
+    }
+
+    public boolean autoCloseTags() {
+        return autoCloseTags;
+    }
+
+    public int indentSpaces() {
+        return indentSpaces;
+    }
+
+    public boolean tabs() {
+        return tabs;
+    }
+
+    public int maxIndentDepth() {
+        return maxIndentDepth;
+    }
+
+    public int maxNesting() {
+        return maxNesting;
+    }
+
+    public long maxOutputChars() {
+        return maxOutputChars;
+    }
+
+    public boolean compactOnOverflow() {
+        return compactOnOverflow;
+    }
+
+    public XmlTokenFilter tokenFilter() {
+        return tokenFilter;
+    }
+
+    // Без табуляции, ограничений и фильтра: такие настройки обслуживает кэш форматтеров XmlPrettyPrinter
+    boolean isPlain() {
+        return !tabs && !compactOnOverflow && maxIndentDepth == UNLIMITED && maxNesting == UNLIMITED
+                && maxOutputChars == UNLIMITED_OUTPUT && tokenFilter == null;
+    }
+
+    private static void requireNonNegative(String name, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(name + " must be >= 0: " + value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("autoCloseTags %b, indent %s, max indent depth %d, max nesting %d, max output %d chars, compact on overflow %b, token filter %b",
+                autoCloseTags, tabs ? "tab" : indentSpaces + " spaces", maxIndentDepth, maxNesting, maxOutputChars,
+                compactOnOverflow, tokenFilter != null);
+    }
+}
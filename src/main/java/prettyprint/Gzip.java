@@ -0,0 +1,72 @@
+package prettyprint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Сжатый gzip вход распознаётся по первым двум байтам, а не по расширению файла. Буферы inflate/deflate
+// увеличены с 512 байт по умолчанию: ими сжатые данные читаются из файла и пишутся в канал, и на 512 байтах
+// каждая такая порция - отдельный системный вызов
+final class Gzip {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAGIC_0 = 0x1F;
+    private static final int MAGIC_1 = 0x8B;
+
+    private Gzip() {
+    }
+
+    static boolean isGzip(byte[] bytes) {
+        return bytes.length >= 2 && (bytes[0] & 0xFF) == MAGIC_0 && (bytes[1] & 0xFF) == MAGIC_1;
+    }
+
+    static boolean isGzip(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return isGzip(in.readNBytes(2));
+        }
+    }
+
+    // Для чтения файла с произвольного смещения (XmlPreview, XmlElementIndex): сжатый файл так не прочитать
+    static void requireUncompressed(Path path) throws IOException {
+        if (isGzip(path)) {
+            throw new UnsupportedOperationException("Compressed file cannot be read from an offset: " + path);
+        }
+    }
+
+    // Поток как есть или распакованный, если он начинается с заголовка gzip
+    static InputStream decompressIfGzip(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int read = pushback.readNBytes(header, 0, 2);
+        pushback.unread(header, 0, read);
+        if (read == 2 && isGzip(header)) {
+            return new GZIPInputStream(pushback, BUFFER_SIZE);
+        }
+        return pushback;
+    }
+
+    static GZIPOutputStream compress(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, BUFFER_SIZE);
+    }
+
+    static byte[] decompress(byte[] bytes) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes), BUFFER_SIZE)) {
+            return in.readAllBytes();
+        }
+    }
+
+    static byte[] compress(byte[] bytes) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream out = compress(result)) {
+            out.write(bytes);
+        }
+        return result.toByteArray();
+    }
+}
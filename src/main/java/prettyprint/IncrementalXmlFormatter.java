@@ -0,0 +1,314 @@
+package prettyprint;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Повторное форматирование после правки: форматтер помнит последний вход, результат и дерево элементов
+// (позиции во входе и в результате, уровень отступа, родитель). При правке внутри содержимого элемента
+// заново разбирается и печатается только наименьший охватывающий элемент, а его вывод вклеивается
+// в прежний результат. Результат всегда совпадает с SimpleXmlFormatter на новом входе.
+// Стоимость правки зависит от размера элемента, а не документа: результат хранится в Rope, а позиции
+// элементов - относительно родителя, со сдвигами детей в дереве Фенвика у родителя, поэтому правка
+// сдвигает O(глубина * log ширина) значений, а не все элементы после неё
+public class IncrementalXmlFormatter extends XmlFormatter {
+    private final SimpleXmlFormatter formatter;
+
+    private String input;
+    private Rope output;
+    private Element root = new Element(null, 0, false);
+    private long firstFallback = Long.MAX_VALUE;
+
+    public IncrementalXmlFormatter() {
+        this(2);
+    }
+
+    public IncrementalXmlFormatter(int indentSpaces) {
+        super(indentSpaces);
+        this.formatter = new SimpleXmlFormatter(indentSpaces);
+    }
+
+    // Полное форматирование; результат и дерево элементов запоминаются для последующих update
+    @Override
+    public String format(String xml) {
+        StringBuilder result = new StringBuilder(xml.length() + xml.length() / 4);
+        XmlLexer lexer = new XmlLexer(xml);
+        Element document = new Element(null, 0, false);
+        try {
+            XmlOutput out = new XmlOutput(result, indentSpaces, true);
+            emit(new XmlTokenCursor(lexer), out, new SimpleXmlFormatter.State(), Long.MAX_VALUE, document);
+            out.finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder не бросает IOException
+        }
+        String formatted = result.toString();
+        input = xml;
+        output = new Rope(formatted);
+        root = document;
+        firstFallback = lexer.firstFallback();
+        return formatted;
+    }
+
+    // xml - новый текст документа, в котором символы [editStart, editOldEnd) прежнего входа
+    // заменены символами [editStart, editNewEnd). Если правка задевает теги или меняет структуру,
+    // документ форматируется целиком. Результат - вид на текст форматтера, годный до следующего вызова
+    // format или update; toString() склеивает его в строку
+    public CharSequence update(String xml, int editStart, int editOldEnd, int editNewEnd) {
+        if (input == null) {
+            return format(xml);
+        }
+        int delta = editNewEnd - editOldEnd;
+        if (editStart < 0 || editStart > editOldEnd || editOldEnd > input.length() || editNewEnd < editStart
+                || xml.length() != input.length() + delta) {
+            throw new IllegalArgumentException("Edit [" + editStart + ", " + editOldEnd + ") -> [" + editStart + ", "
+                    + editNewEnd + ") does not match the previous input");
+        }
+        Element element = findEnclosing(editStart, editOldEnd);
+        if (element == null || inStart(element) > firstFallback) {
+            return format(xml);
+        }
+        try {
+            if (!reformatElement(xml, element, delta)) {
+                return format(xml);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder не бросает IOException
+        }
+        return output;
+    }
+
+    @Override
+    protected void format(XmlTokenCursor tokens, XmlOutput out) throws IOException {
+        formatter.format(tokens, out);
+    }
+
+    // Наименьший закрытый элемент, содержимое которого (между открывающим и закрывающим тегом)
+    // целиком содержит правку, или null. Спуск от корня: на каждом уровне двоичный поиск по детям
+    private Element findEnclosing(int start, int end) {
+        Element result = null;
+        Element parent = root;
+        int parentStart = 0;
+        while (parent.children != null) {
+            int low = 0;
+            int high = parent.children.size() - 1;
+            int found = -1;
+            int foundStart = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int childStart = parentStart + parent.children.get(mid).inStart + parent.inShift(mid);
+                if (childStart <= start) {
+                    found = mid;
+                    foundStart = childStart;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (found < 0) {
+                break;
+            }
+            Element child = parent.children.get(found);
+            if (start < foundStart + child.openLength) {
+                break; // правка задевает открывающий тег
+            }
+            if (child.inLength >= 0) {
+                if (end > foundStart + child.closeOffset) {
+                    break; // правка выходит за содержимое: ни сам элемент, ни его потомки её не охватывают
+                }
+                result = child;
+            }
+            parent = child;
+            parentStart = foundStart;
+        }
+        return result;
+    }
+
+    private boolean reformatElement(String xml, Element old, int delta) throws IOException {
+        int oldStart = inStart(old);
+        int newEnd = oldStart + old.inLength + delta;
+
+        StringBuilder text = new StringBuilder();
+        XmlOutput out = new XmlOutput(text, indentSpaces, false);
+        XmlLexer lexer = new XmlLexer(xml, oldStart);
+        Element container = new Element(null, 0, false);
+        emit(new XmlTokenCursor(lexer), out, new SimpleXmlFormatter.State(old.level, old.inlineBefore), newEnd,
+                container);
+        out.finish();
+        // Элемент должен снова начинаться с того же места и закрываться ровно последним токеном правки
+        Element element = container.children != null && container.children.size() == 1 ? container.children.get(0) : null;
+        if (element == null || element.inStart != oldStart || element.inLength != newEnd - oldStart) {
+            return false;
+        }
+
+        int outStart = outStart(old);
+        int outEnd = outStart + old.outLength;
+        int outDelta = element.outLength - old.outLength;
+        if (outEnd >= output.length()) {
+            // Элемент был концом документа: его хвостовой перевод строки отбрасывается, как в полном форматировании
+            int length = text.length();
+            while (length > 0 && text.charAt(length - 1) <= ' ') {
+                length--;
+            }
+            text.setLength(length);
+            output.replace(outStart, output.length(), text.toString());
+        } else {
+            output.replace(outStart, outEnd, text.toString());
+        }
+
+        // Новый элемент встаёт на место старого с теми же относительными началами
+        Element parent = old.parent;
+        element.parent = parent;
+        element.index = old.index;
+        element.inStart = old.inStart;
+        element.outStart = old.outStart;
+        parent.children.set(old.index, element);
+        for (Element child = element; parent != null; child = parent, parent = parent.parent) {
+            parent.shiftChildren(child.index + 1, delta, outDelta);
+            if (parent.inLength >= 0) {
+                parent.closeOffset += delta;
+                parent.inLength += delta;
+                parent.outLength += outDelta;
+            }
+        }
+
+        int oldEnd = oldStart + old.inLength;
+        if (firstFallback != Long.MAX_VALUE) {
+            if (firstFallback >= oldEnd) {
+                firstFallback += delta;
+            } else {
+                // Первая незавершённая конструкция была внутри элемента, а следующая за ней неизвестна:
+                // считаем, что она сразу после элемента, и правки дальше пойдут через полное форматирование
+                firstFallback = newEnd;
+            }
+        }
+        firstFallback = Math.min(firstFallback, lexer.firstFallback());
+
+        input = xml;
+        return true;
+    }
+
+    // Позиция элемента во входе: сумма относительных начал и сдвигов до корня
+    private static int inStart(Element element) {
+        int start = 0;
+        for (; element.parent != null; element = element.parent) {
+            start += element.inStart + element.parent.inShift(element.index);
+        }
+        return start;
+    }
+
+    private static int outStart(Element element) {
+        int start = 0;
+        for (; element.parent != null; element = element.parent) {
+            start += element.outStart + element.parent.outShift(element.index);
+        }
+        return start;
+    }
+
+    // Форматирует токены до позиции end по одному и добавляет встреченные элементы в дерево под container.
+    // Позиции во входе абсолютные, в результате - от начала out; в элементах они хранятся относительно родителя
+    private void emit(XmlTokenCursor tokens, XmlOutput out, SimpleXmlFormatter.State state, long end,
+                      Element container) throws IOException {
+        Element open = container;
+        // Абсолютные начала открытых элементов во входе и в результате, парами; в начале - container
+        int[] starts = new int[64];
+        int depth = 0;
+        while (tokens.hasNext() && tokens.peek().start < end) {
+            XmlToken token = tokens.peek();
+            int outStart = (int) out.position();
+            boolean inlineBefore = state.hasInlineText;
+            int level = state.indentLevel;
+            formatter.format(tokens, out, state, token.start + 1);
+
+            if (token.type == XmlToken.TokenType.OPENING_TAG) {
+                Element element = new Element(open, level, inlineBefore);
+                element.inStart = (int) token.start - starts[2 * depth];
+                element.outStart = outStart - starts[2 * depth + 1];
+                element.openLength = (int) (token.end - token.start);
+                open.add(element);
+                open = element;
+                depth++;
+                if (2 * depth + 1 >= starts.length) {
+                    starts = Arrays.copyOf(starts, 2 * starts.length);
+                }
+                starts[2 * depth] = (int) token.start;
+                starts[2 * depth + 1] = outStart;
+            } else if (token.type == XmlToken.TokenType.CLOSING_TAG && open != container) {
+                open.closeOffset = (int) token.start - starts[2 * depth];
+                open.inLength = (int) token.end - starts[2 * depth];
+                open.outLength = (int) out.position() - starts[2 * depth + 1];
+                open = open.parent;
+                depth--;
+            }
+        }
+    }
+
+    // Элемент от открывающего до парного (по глубине) закрывающего тега. Начала - относительно начала
+    // родителя на момент разбора, к ним добавляются накопленные сдвиги родителя (inShift, outShift);
+    // остальные позиции - относительно начала самого элемента. inLength = -1, если элемент не закрыт
+    private static class Element {
+        Element parent;
+        int index; // место среди детей родителя
+        int inStart;
+        int outStart;
+        int openLength;
+        int closeOffset = -1;
+        int inLength = -1;
+        int outLength = -1;
+        final int level;
+        final boolean inlineBefore;
+        List<Element> children;
+        // Деревья Фенвика по детям: сдвиг начала ребёнка после правок в предыдущих детях
+        private int[] inShifts;
+        private int[] outShifts;
+
+        Element(Element parent, int level, boolean inlineBefore) {
+            this.parent = parent;
+            this.level = level;
+            this.inlineBefore = inlineBefore;
+        }
+
+        void add(Element child) {
+            if (children == null) {
+                children = new ArrayList<>();
+            }
+            child.index = children.size();
+            children.add(child);
+        }
+
+        // Сдвигает начала детей с номера from и дальше. Число детей после разбора не меняется:
+        // правка заменяет ровно один элемент
+        void shiftChildren(int from, int inDelta, int outDelta) {
+            if (children == null || from >= children.size()) {
+                return;
+            }
+            if (inShifts == null) {
+                inShifts = new int[children.size() + 1];
+                outShifts = new int[children.size() + 1];
+            }
+            for (int i = from + 1; i < inShifts.length; i += i & -i) {
+                inShifts[i] += inDelta;
+                outShifts[i] += outDelta;
+            }
+        }
+
+        int inShift(int child) {
+            return sum(inShifts, child);
+        }
+
+        int outShift(int child) {
+            return sum(outShifts, child);
+        }
+
+        private static int sum(int[] shifts, int child) {
+            int sum = 0;
+            if (shifts != null) {
+                for (int i = child + 1; i > 0; i -= i & -i) {
+                    sum += shifts[i];
+                }
+            }
+            return sum;
+        }
+    }
+}
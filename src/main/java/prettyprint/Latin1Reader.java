@@ -0,0 +1,40 @@
+package prettyprint;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+// Читает байты как символы Latin-1 (байт = символ): лексер размечает UTF-8 без декодирования,
+// потому что вся разметка XML в ASCII, а байты многобайтовых символов >= 0x80 проходят как есть
+class Latin1Reader extends Reader {
+    private final ByteBuffer bytes;
+
+    Latin1Reader(ByteBuffer bytes) {
+        this.bytes = bytes;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        int n = Math.min(len, bytes.remaining());
+        if (n == 0) {
+            return len == 0 ? 0 : -1;
+        }
+        int position = bytes.position();
+        if (bytes.hasArray()) {
+            byte[] array = bytes.array();
+            int from = bytes.arrayOffset() + position;
+            for (int i = 0; i < n; i++) {
+                cbuf[off + i] = (char) (array[from + i] & 0xFF);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                cbuf[off + i] = (char) (bytes.get(position + i) & 0xFF);
+            }
+        }
+        bytes.position(position + n);
+        return n;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,82 @@
+package prettyprint;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Пара к Latin1Reader: символы 0..255 записываются обратно теми же байтами в растущий массив
+class Latin1Writer extends Writer {
+    private byte[] bytes;
+    private int count;
+
+    Latin1Writer(int capacity) {
+        this.bytes = new byte[Math.max(capacity, 16)];
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        ensureCapacity(len);
+        for (int i = 0; i < len; i++) {
+            bytes[count + i] = (byte) cbuf[off + i];
+        }
+        count += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        ensureCapacity(len);
+        for (int i = 0; i < len; i++) {
+            bytes[count + i] = (byte) str.charAt(off + i);
+        }
+        count += len;
+    }
+
+    @Override
+    public void write(int c) {
+        ensureCapacity(1);
+        bytes[count++] = (byte) c;
+    }
+
+    void write(ByteBuffer source) {
+        ensureCapacity(source.remaining());
+        int n = source.remaining();
+        source.get(bytes, count, n);
+        count += n;
+    }
+
+    void write(byte[] source) {
+        ensureCapacity(source.length);
+        System.arraycopy(source, 0, bytes, count, source.length);
+        count += source.length;
+    }
+
+    ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(bytes, 0, count);
+    }
+
+    // Отдаёт записанное и продолжает в новом массиве: результат по частям (AsyncXmlFormatter)
+    ByteBuffer take() {
+        ByteBuffer written = ByteBuffer.wrap(bytes, 0, count);
+        bytes = new byte[bytes.length];
+        count = 0;
+        return written;
+    }
+
+    byte[] toByteArray() {
+        return count == bytes.length ? bytes : Arrays.copyOf(bytes, count);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(count + extra, bytes.length * 2));
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package prettyprint;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+// Командная строка: все файлы форматируются на месте в одной JVM, а без файлов работает как фильтр
+// stdin -> stdout. Пул потоков и обход каталогов загружаются, только если есть что форматировать.
+//
+// Событие JFR prettyprint.Format по умолчанию выключено (см. XmlFormatter.FLIGHT_RECORDER_EVENTS),
+// для профилирования запускайте с -Dprettyprint.jfr=true.
+//
+// Для быстрого холодного старта можно один раз записать архив AppCDS (JDK 13+) и подключать его при запуске.
+// AppCDS работает только с jar в classpath, каталог target/classes не подходит:
+//   mvn package
+//   java -XX:ArchiveClassesAtExit=prettyprint.jsa -jar target/PrettyPrint-1.0-SNAPSHOT.jar sample-dir
+//   java -XX:SharedArchiveFile=prettyprint.jsa -XX:TieredStopAtLevel=1 -jar target/PrettyPrint-1.0-SNAPSHOT.jar ...
+// Архив привязан к версии JDK и к jar, после их смены его нужно записать заново. TieredStopAtLevel=1
+// (только C1) выгоден на коротких запусках и мелких файлах, на больших документах он медленнее.
+public class Main {
+    static final int EXIT_OK = 0;
+    static final int EXIT_FAILED = 1;
+    static final int EXIT_USAGE = 2;
+
+    private static final String USAGE = String.join("\n",
+            "Usage: prettyprint [options] [file | directory | glob]...",
+            "Formats files in place; directories mean every *.xml and *.xml.gz below them.",
+            "With no files (or '-') reads XML from stdin and writes it to stdout.",
+            "Gzip input is detected by its header; files formatted in place stay compressed.",
+            "",
+            "  -r, --repair            close unclosed tags",
+            "  -i, --indent N          indent width (default 2)",
+            "  -t, --tabs              indent with one tab per level",
+            "      --flatten-at N      indent no deeper than N levels",
+            "      --max-nesting N     fail on elements nested deeper than N",
+            "      --max-output N      fail when the output of a file exceeds N chars",
+            "      --compact-fallback  write files that hit a limit without indentation instead",
+            "  -j, --threads N         files formatted in parallel (default: CPU count)",
+            "  -o, --output FILE       write the single input file to FILE instead of in place",
+            "  -z, --gzip              compress stdout or the -o file (implied by a .gz name)",
+            "  -@, --files-from-stdin  also read file names from stdin, one per line",
+            "  -v, --verbose           print a summary to stderr",
+            "  -h, --help              show this help");
+
+    private boolean repair;
+    private int indent = 2;
+    private boolean tabs;
+    private int maxIndentDepth = FormatOptions.UNLIMITED;
+    private int maxNesting = FormatOptions.UNLIMITED;
+    private long maxOutput = FormatOptions.UNLIMITED_OUTPUT;
+    private boolean compactOnOverflow;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private String output;
+    private boolean gzip;
+    private boolean filesFromStdin;
+    private boolean verbose;
+    private final List<String> inputs = new ArrayList<>();
+
+    public static void main(String[] args) {
+        // До первого обращения к XmlFormatter: свойство читается при загрузке класса
+        if (System.getProperty(XmlFormatter.JFR_PROPERTY) == null) {
+            System.setProperty(XmlFormatter.JFR_PROPERTY, "false");
+        }
+        System.exit(run(args, System.in, System.out, System.err));
+    }
+
+    static int run(String[] args, InputStream in, PrintStream out, PrintStream err) {
+        Main main = new Main();
+        try {
+            if (!main.parse(args)) {
+                out.println(USAGE);
+                return EXIT_OK;
+            }
+        } catch (IllegalArgumentException e) {
+            err.println("prettyprint: " + e.getMessage());
+            err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        try {
+            return main.execute(in, out, err);
+        } catch (IOException | RuntimeException e) {
+            err.println("prettyprint: " + e);
+            return EXIT_FAILED;
+        }
+    }
+
+    // Возвращает false для --help
+    private boolean parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-r":
+                case "--repair":
+                    repair = true;
+                    break;
+                case "-i":
+                case "--indent":
+                    indent = (int) number(arg, ++i < args.length ? args[i] : null, 0, Integer.MAX_VALUE);
+                    break;
+                case "-t":
+                case "--tabs":
+                    tabs = true;
+                    break;
+                case "--flatten-at":
+                    maxIndentDepth = (int) number(arg, ++i < args.length ? args[i] : null, 0, Integer.MAX_VALUE);
+                    break;
+                case "--max-nesting":
+                    maxNesting = (int) number(arg, ++i < args.length ? args[i] : null, 0, Integer.MAX_VALUE);
+                    break;
+                case "--max-output":
+                    maxOutput = number(arg, ++i < args.length ? args[i] : null, 0, Long.MAX_VALUE);
+                    break;
+                case "--compact-fallback":
+                    compactOnOverflow = true;
+                    break;
+                case "-j":
+                case "--threads":
+                    threads = (int) number(arg, ++i < args.length ? args[i] : null, 1, Integer.MAX_VALUE);
+                    break;
+                case "-o":
+                case "--output":
+                    if (++i >= args.length) {
+                        throw new IllegalArgumentException(arg + " needs a file name");
+                    }
+                    output = args[i];
+                    break;
+                case "-z":
+                case "--gzip":
+                    gzip = true;
+                    break;
+                case "-@":
+                case "--files-from-stdin":
+                    filesFromStdin = true;
+                    break;
+                case "-v":
+                case "--verbose":
+                    verbose = true;
+                    break;
+                case "-h":
+                case "--help":
+                    return false;
+                default:
+                    if (arg.startsWith("-") && !arg.equals("-")) {
+                        throw new IllegalArgumentException("unknown option " + arg);
+                    }
+                    inputs.add(arg);
+            }
+        }
+        if (output != null && (inputs.size() != 1 || inputs.get(0).equals("-") || filesFromStdin)) {
+            throw new IllegalArgumentException("--output needs exactly one input file");
+        }
+        if (inputs.contains("-") && (inputs.size() > 1 || filesFromStdin)) {
+            throw new IllegalArgumentException("'-' cannot be combined with other inputs");
+        }
+        return true;
+    }
+
+    private static long number(String option, String value, long min, long max) {
+        try {
+            long number = Long.parseLong(value);
+            if (number >= min && number <= max) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // ниже
+        }
+        throw new IllegalArgumentException(option + " needs an integer in [" + min + ", " + max + "], got " + value);
+    }
+
+    private FormatOptions options() {
+        FormatOptions options = FormatOptions.DEFAULT.withAutoCloseTags(repair).withIndent(indent)
+                .withMaxIndentDepth(maxIndentDepth).withMaxNesting(maxNesting).withMaxOutputChars(maxOutput)
+                .withCompactOnOverflow(compactOnOverflow);
+        return tabs ? options.withTabs() : options;
+    }
+
+    private int execute(InputStream in, PrintStream out, PrintStream err) throws IOException {
+        if (!filesFromStdin && (inputs.isEmpty() || inputs.get(0).equals("-"))) {
+            if (gzip) {
+                GZIPOutputStream compressed = Gzip.compress(out);
+                XmlPrettyPrinter.format(in, compressed, options());
+                compressed.finish();
+            } else {
+                XmlPrettyPrinter.format(in, out, options());
+            }
+            out.flush();
+            return EXIT_OK;
+        }
+        if (output != null) {
+            XmlPrettyPrinter.formatFileToFile(inputs.get(0), output, options(),
+                    gzip || XmlPrettyPrinter.isGzipName(Path.of(output)));
+            return EXIT_OK;
+        }
+
+        TreeFormatter batch = new TreeFormatter(options(), threads);
+        batch.start();
+        BatchResult result;
+        try {
+            for (String input : inputs) {
+                submit(batch, input);
+            }
+            if (filesFromStdin) {
+                BufferedReader names = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String name;
+                while ((name = names.readLine()) != null) {
+                    if (!name.isBlank()) {
+                        batch.submitFile(Path.of(name.strip()));
+                    }
+                }
+            }
+        } finally {
+            result = batch.finish();
+        }
+
+        for (Map.Entry<Path, Exception> error : result.errors.entrySet()) {
+            err.println(error.getKey() + ": " + error.getValue());
+        }
+        if (verbose) {
+            err.println(result);
+        }
+        return result.hasErrors() ? EXIT_FAILED : EXIT_OK;
+    }
+
+    private static void submit(TreeFormatter batch, String input) throws IOException {
+        int glob = globStart(input);
+        if (glob >= 0) {
+            // Каталог до первого сегмента с метасимволами - корень обхода, остальное - шаблон
+            int slash = input.lastIndexOf('/', glob);
+            Path root = Path.of(slash < 0 ? "." : slash == 0 ? "/" : input.substring(0, slash));
+            batch.submitTree(root, input.substring(slash + 1));
+        } else if (Files.isDirectory(Path.of(input))) {
+            batch.submitTree(Path.of(input), "**.{xml,xml.gz}");
+        } else {
+            batch.submitFile(Path.of(input));
+        }
+    }
+
+    private static int globStart(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,96 @@
+package prettyprint;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+// Читает файл через отображение в память: байты декодируются прямо из страничного кэша
+// в буфер лексера, без промежуточного byte[] и без копии всего файла в String
+class MappedFileReader extends Reader {
+    private static final long REGION_SIZE = 64L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long size;
+    private final CharsetDecoder decoder;
+    private MappedByteBuffer region;
+    private long regionStart;
+    private boolean flushed;
+    private final char[] pair = new char[2];
+    private int pendingChar = -1;
+
+    MappedFileReader(FileChannel channel) throws IOException {
+        this(channel, 0, StandardCharsets.UTF_8);
+    }
+
+    // Чтение с байта start; одним каналом могут одновременно пользоваться несколько читателей
+    MappedFileReader(FileChannel channel, long start, Charset charset) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.decoder = charset.newDecoder();
+        map(start);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pendingChar >= 0) {
+            cbuf[off] = (char) pendingChar;
+            pendingChar = -1;
+            return 1;
+        }
+        if (len == 1) {
+            // В один char не помещается суррогатная пара: декодируем во временный буфер
+            int read = read(pair, 0, 2);
+            if (read > 0) {
+                cbuf[off] = pair[0];
+                if (read == 2) {
+                    pendingChar = pair[1];
+                }
+                return 1;
+            }
+            return read;
+        }
+        if (flushed) {
+            return -1;
+        }
+        CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+        while (out.position() == off) {
+            boolean endOfInput = regionStart + region.limit() == size;
+            CoderResult result = decoder.decode(region, out, endOfInput);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (result.isOverflow()) {
+                break;
+            }
+            if (!endOfInput) {
+                // Конец региона может разрезать многобайтовый символ: отображаем следующий с непрочитанного байта
+                map(regionStart + region.position());
+            } else {
+                decoder.flush(out);
+                flushed = true;
+                break;
+            }
+        }
+        int read = out.position() - off;
+        return read == 0 ? -1 : read;
+    }
+
+    // Канал закрывает его владелец
+    @Override
+    public void close() {
+    }
+
+    private void map(long start) throws IOException {
+        regionStart = start;
+        region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+    }
+}
@@ -0,0 +1,118 @@
+package prettyprint;
+
+import java.io.IOException;
+
+// Компактный вывод на том же потоке токенов: без отступов и переводов строк, пробельный текст между тегами
+// отбрасывается. Пробелы на стыке текста и разметки в смешанном содержимом разделяют слова
+// ("<p>Hello <b>world</b> again</p>"), поэтому от них остаётся один пробел (XmlLexer.needsSpace). Содержимое токенов копируется как есть, без повторного экранирования, чтобы уже
+// закодированные сущности не портились при пересылке.
+// С autoCloseTags теги чинятся за тот же проход: незакрытые закрываются, закрывающие теги без пары отбрасываются.
+// Из ограничений FormatOptions действует только размер результата: отступов нет, и глубина на размер не влияет
+public class MinifyXmlFormatter extends XmlFormatter {
+
+    public MinifyXmlFormatter() {
+        this(false);
+    }
+
+    public MinifyXmlFormatter(boolean autoCloseTags) {
+        this(autoCloseTags, null);
+    }
+
+    public MinifyXmlFormatter(boolean autoCloseTags, FormatListener listener) {
+        this(FormatOptions.DEFAULT.withAutoCloseTags(autoCloseTags), listener);
+    }
+
+    public MinifyXmlFormatter(FormatOptions options, FormatListener listener) {
+        super(options.withIndent(0), listener);
+    }
+
+    @Override
+    protected void format(XmlTokenCursor tokens, XmlOutput out) throws IOException {
+        if (!options.autoCloseTags()) {
+            tokens.copyRemaining(out);
+            return;
+        }
+        TagStack tags = Scratch.takeTagStack();
+        try {
+            repair(tokens, out, tags);
+        } finally {
+            Scratch.giveTagStack(tags);
+        }
+    }
+
+    // Те же правила, что в RepairXmlFormatter: тег с текстом в строку закрывается сразу после текста
+    private void repair(XmlTokenCursor tokens, XmlOutput out, TagStack tags) throws IOException {
+        FormatMetrics metrics = tokens.metrics;
+        int closed = 0;
+        boolean hasInlineText = false;
+        int inlineClosedTag = -1; // тег, уже закрытый после текста в строку: его закрывающий тег ожидаем
+        XmlToken previous = null; // последний прочитанный токен, в том числе отброшенный
+        boolean space = false; // пробел перед следующим записанным токеном
+
+        while (tokens.hasNext()) {
+            XmlToken token = tokens.next();
+            space |= previous != null && XmlLexer.needsSpace(previous.type, previous.end, token.type, token.start);
+            previous = token;
+            switch (token.type) {
+                case OPENING_TAG:
+                    space = appendSpace(out, space);
+                    out.append(token.content);
+                    hasInlineText = isNextNonEmptyTokenText(tokens);
+                    tags.push(tags.intern(token.content), hasInlineText);
+                    break;
+
+                case CLOSING_TAG:
+                    int tag = tags.isEmpty() ? -1 : tags.find(token.content);
+                    if (tag >= 0 && tags.isPeekInline() && tags.peek() == tag) {
+                        tags.pop();
+                    } else if (tag >= 0 && tags.isOpen(tag)) {
+                        space = appendSpace(out, space);
+                        while (tags.peek() != tag) {
+                            closeTag(out, tags);
+                            closed++;
+                        }
+                        tags.pop();
+                        out.append(token.content);
+                    } else if (metrics != null && (inlineClosedTag < 0 || tags.find(token.content) != inlineClosedTag)) {
+                        metrics.droppedClosingTag();
+                    }
+                    inlineClosedTag = -1;
+                    break;
+
+                case TEXT:
+                    space = appendSpace(out, space);
+                    out.append(token.content);
+                    if (hasInlineText) {
+                        inlineClosedTag = !tags.isEmpty() && tags.isPeekInline() ? closeTag(out, tags) : -1;
+                    }
+                    break;
+
+                default:
+                    space = appendSpace(out, space);
+                    out.append(token.content);
+            }
+        }
+
+        while (!tags.isEmpty()) {
+            closeTag(out, tags);
+            closed++;
+        }
+        if (metrics != null) {
+            metrics.autoClosed(closed);
+        }
+    }
+
+    // Пробел, отложенный до первого записанного токена: у отброшенного закрывающего тега его нет
+    private static boolean appendSpace(XmlOutput out, boolean space) throws IOException {
+        if (space) {
+            out.append(" ");
+        }
+        return false;
+    }
+
+    private static int closeTag(XmlOutput out, TagStack tags) throws IOException {
+        int tag = tags.pop();
+        out.append("</").append(tags.name(tag)).append(">");
+        return tag;
+    }
+}
@@ -0,0 +1,294 @@
+package prettyprint;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Параллельное форматирование одного большого документа в режиме SimpleXmlFormatter.
+// Вход режется на куски по символу '<', куски разбираются одновременно: для каждого считается
+// изменение глубины и влияние на признак текста в строку. Начальное состояние каждого куска
+// получается префиксной суммой, после чего куски форматируются параллельно и склеиваются.
+// Результат совпадает с SimpleXmlFormatter байт в байт.
+public class ParallelXmlFormatter extends XmlFormatter {
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // Как кусок меняет признак hasInlineText: оставляет прежним, выставляет или сбрасывает
+    private static final int INLINE_KEEP = 0;
+    private static final int INLINE_SET = 1;
+    private static final int INLINE_CLEAR = 2;
+
+    private final int parallelism;
+    private final int chunkSize;
+    private final SimpleXmlFormatter formatter;
+
+    public ParallelXmlFormatter() {
+        this(2, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelXmlFormatter(int indentSpaces) {
+        this(indentSpaces, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelXmlFormatter(int indentSpaces, int parallelism) {
+        this(indentSpaces, parallelism, 0);
+    }
+
+    // chunkSize 0 - размер куска подбирается по длине входа
+    ParallelXmlFormatter(int indentSpaces, int parallelism, int chunkSize) {
+        super(indentSpaces);
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+        this.formatter = new SimpleXmlFormatter(indentSpaces);
+    }
+
+    @Override
+    public String format(String xml) {
+        StringBuilder result = new StringBuilder(xml.length() + xml.length() / 4);
+        try {
+            format(new StringSource(xml), result);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder не бросает IOException
+        }
+        return result.toString();
+    }
+
+    // Файл читается побайтно как ISO-8859-1: разметка XML состоит из ASCII, а байты UTF-8
+    // за пределами ASCII проходят насквозь без изменений, поэтому границы кусков можно брать
+    // прямо в байтах. Результат в target тоже в ISO-8859-1, т.е. это исходные байты UTF-8.
+    void formatLatin1(FileChannel input, Appendable target) throws IOException {
+        format(new MappedSource(input), target);
+    }
+
+    // Поток (Reader) не режется на куски и форматируется последовательно
+    @Override
+    protected void format(XmlTokenCursor tokens, XmlOutput out) throws IOException {
+        formatter.format(tokens, out);
+    }
+
+    private void format(Source source, Appendable target) throws IOException {
+        List<Chunk> chunks = split(source);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Callable<Chunk>> scans = new ArrayList<>();
+            for (Chunk chunk : chunks) {
+                scans.add(() -> scan(source, chunk));
+            }
+            invokeAll(pool, scans);
+            resolve(source, chunks);
+
+            XmlOutput out = new XmlOutput(target, indentSpaces, true);
+            // Куски форматируются волнами по parallelism штук, поэтому в памяти одновременно
+            // лежит не больше parallelism отформатированных кусков
+            int wave = parallelism;
+            for (int from = 0; from < chunks.size(); from += wave) {
+                List<Callable<StringBuilder>> emits = new ArrayList<>();
+                for (Chunk chunk : chunks.subList(from, Math.min(from + wave, chunks.size()))) {
+                    emits.add(() -> emit(source, chunk));
+                }
+                for (StringBuilder text : invokeAll(pool, emits)) {
+                    out.append(text);
+                }
+            }
+            out.finish();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Границы кусков стоят на '<', а не посреди текста; если граница всё же попала внутрь токена
+    // (например, в комментарий), это обнаружит scan, и куски будут склеены в resolve
+    private List<Chunk> split(Source source) throws IOException {
+        long length = source.length();
+        long size = chunkSize > 0 ? chunkSize
+                : Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, length / (parallelism * 4L)));
+        List<Chunk> chunks = new ArrayList<>();
+        long start = 0;
+        while (start < length) {
+            long end = start + size < length ? source.indexOfMarkup(start + size) : -1;
+            if (end < 0) {
+                end = length;
+            }
+            chunks.add(new Chunk(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    // Считает, как кусок меняет глубину и признак текста в строку; логика повторяет SimpleXmlFormatter
+    private Chunk scan(Source source, Chunk chunk) throws IOException {
+        XmlTokenCursor tokens = source.cursor(chunk.start);
+        int depth = 0;
+        int inline = INLINE_KEEP;
+        long lastEnd = chunk.start;
+        while (tokens.hasNext() && tokens.peek().start < chunk.end) {
+            XmlToken token = tokens.next();
+            lastEnd = token.end;
+            if (token.type == XmlToken.TokenType.OPENING_TAG) {
+                depth++;
+                if (isNextNonEmptyTokenText(tokens)) {
+                    inline = INLINE_SET;
+                }
+            } else if (token.type == XmlToken.TokenType.CLOSING_TAG) {
+                depth--;
+                inline = INLINE_CLEAR;
+            }
+        }
+        chunk.depth = depth;
+        chunk.inline = inline;
+        chunk.synced = lastEnd <= chunk.end;
+        return chunk;
+    }
+
+    // Склеивает кусок со следующим, пока его последний токен заходит за границу,
+    // и расставляет начальные глубины и признаки префиксной суммой
+    private void resolve(Source source, List<Chunk> chunks) throws IOException {
+        int level = 0;
+        boolean hasInlineText = false;
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            while (!chunk.synced) {
+                chunk.end = chunks.remove(i + 1).end;
+                scan(source, chunk);
+            }
+            chunk.startLevel = level;
+            chunk.startInline = hasInlineText;
+            level += chunk.depth;
+            if (chunk.inline != INLINE_KEEP) {
+                hasInlineText = chunk.inline == INLINE_SET;
+            }
+        }
+    }
+
+    private StringBuilder emit(Source source, Chunk chunk) throws IOException {
+        StringBuilder text = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 8, (chunk.end - chunk.start) * 5 / 4));
+        XmlOutput out = new XmlOutput(text, indentSpaces, false);
+        SimpleXmlFormatter.State state = new SimpleXmlFormatter.State(chunk.startLevel, chunk.startInline);
+        formatter.format(source.cursor(chunk.start), out, state, chunk.end);
+        out.finish();
+        return text;
+    }
+
+    private static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Formatting interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+        return results;
+    }
+
+    private static class Chunk {
+        final long start;
+        long end;
+        int depth;
+        int inline;
+        boolean synced;
+        int startLevel;
+        boolean startInline;
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private interface Source {
+        long length() throws IOException;
+
+        // Позиция первого '<' не раньше from или -1
+        long indexOfMarkup(long from) throws IOException;
+
+        XmlTokenCursor cursor(long from) throws IOException;
+    }
+
+    private static class StringSource implements Source {
+        private final String xml;
+
+        StringSource(String xml) {
+            this.xml = xml;
+        }
+
+        @Override
+        public long length() {
+            return xml.length();
+        }
+
+        @Override
+        public long indexOfMarkup(long from) {
+            return xml.indexOf('<', (int) from);
+        }
+
+        @Override
+        public XmlTokenCursor cursor(long from) {
+            return new XmlTokenCursor(new XmlLexer(xml, (int) from));
+        }
+    }
+
+    private static class MappedSource implements Source {
+        private static final int SCAN_SIZE = 64 * 1024;
+
+        private final FileChannel channel;
+
+        MappedSource(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public long length() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public long indexOfMarkup(long from) throws IOException {
+            long size = channel.size();
+            while (from < size) {
+                int length = (int) Math.min(SCAN_SIZE, size - from);
+                MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+                for (int i = 0; i < length; i++) {
+                    if (bytes.get(i) == '<') {
+                        return from + i;
+                    }
+                }
+                from += length;
+            }
+            return -1;
+        }
+
+        @Override
+        public XmlTokenCursor cursor(long from) throws IOException {
+            MappedFileReader reader = new MappedFileReader(channel, from, StandardCharsets.ISO_8859_1);
+            return new XmlTokenCursor(new XmlLexer(reader, from));
+        }
+    }
+}
@@ -1,164 +1,232 @@
 package prettyprint;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.io.IOException;
 import java.util.List;
 
+// Стек тегов живёт только в пределах вызова, поэтому один экземпляр можно использовать из разных потоков
 public class RepairXmlFormatter extends XmlFormatter {
-    private Deque<String> tagDeque;
-    private Deque<Boolean> inlineTagDeque;
 
     public RepairXmlFormatter() {
         super();
-        this.tagDeque = new ArrayDeque<>();
-        this.inlineTagDeque = new ArrayDeque<>();
     }
 
     public RepairXmlFormatter(int indentSpaces) {
         super(indentSpaces);
-        this.tagDeque = new ArrayDeque<>();
-        this.inlineTagDeque = new ArrayDeque<>();
+    }
+
+    public RepairXmlFormatter(int indentSpaces, FormatListener listener) {
+        super(indentSpaces, listener);
+    }
+
+    public RepairXmlFormatter(FormatOptions options) {
+        this(options, null);
+    }
+
+    public RepairXmlFormatter(FormatOptions options, FormatListener listener) {
+        super(options.withAutoCloseTags(true), listener);
     }
 
     @Override
-    public String format(String xml) {
-        tagDeque.clear();
-        inlineTagDeque.clear();
-        List<XmlToken> tokens = tokenizer.tokenize(xml);
-        StringBuilder result = new StringBuilder();
-        boolean hasInlineText = false;
+    protected void format(XmlTokenCursor tokens, XmlOutput out) throws IOException {
+        TagStack tags = Scratch.takeTagStack();
+        try {
+            State state = new State(tags);
+            format(tokens, out, state);
+            finish(tokens, out, state);
+        } finally {
+            Scratch.giveTagStack(tags);
+        }
+    }
+
+    // Стек документа, который приходит частями, живёт между вызовами и поэтому не берётся из Scratch.
+    // Имена открытых тегов стек знает всегда
+    @Override
+    Resumable resumable(boolean trackTags) {
+        return resumable(new State(new TagStack()));
+    }
+
+    private Resumable resumable(State state) {
+        return new Resumable() {
+            @Override
+            public void resume(XmlTokenCursor tokens, XmlOutput out) throws IOException {
+                format(tokens, out, state);
+            }
+
+            @Override
+            public void finish(XmlTokenCursor tokens, XmlOutput out) throws IOException {
+                RepairXmlFormatter.this.finish(tokens, out, state);
+            }
+
+            @Override
+            public List<String> openTags() {
+                return state.tags.openNames();
+            }
 
-        for (int i = 0; i < tokens.size(); i++) {
-            XmlToken token = tokens.get(i);
-            int indentLevel = tagDeque.size();
+            @Override
+            public Resumable copy() {
+                return resumable(state.copy());
+            }
+        };
+    }
+
+    private void format(XmlTokenCursor tokens, XmlOutput out, State state) throws IOException {
+        TagStack tags = state.tags;
+        boolean hasInlineText = state.hasInlineText;
+        FormatMetrics metrics = tokens.metrics;
+        int inlineClosedTag = state.inlineClosedTag;
+
+        while (tokens.hasNext()) {
+            XmlToken token = tokens.next();
+            int indentLevel = tags.size();
 
             switch (token.type) {
                 case XML_DECLARATION:
-                    result.append(token.content).append("\n");
+                    out.append(token.content).newline();
                     break;
 
                 case COMMENT:
                 case CDATA:
-                    result.append(getIndent(indentLevel)).append(token.content).append("\n");
+                    out.indent(indentLevel).append(token.content).newline();
                     break;
 
                 case CLOSING_TAG:
-                    processClosingTag(token, result);
+                    boolean matched = processClosingTag(token, out, metrics, tags);
+                    if (!matched && metrics != null && (inlineClosedTag < 0 || tags.find(token.content) != inlineClosedTag)) {
+                        metrics.droppedClosingTag();
+                    }
+                    inlineClosedTag = -1;
                     break;
 
                 case SELF_CLOSING_TAG:
-                    result.append(getIndent(indentLevel)).append(token.content).append("\n");
+                    out.indent(indentLevel).append(token.content).newline();
                     break;
 
                 case OPENING_TAG:
-                    hasInlineText = processOpeningTag(token, result, indentLevel, tokens, i);
+                    hasInlineText = processOpeningTag(token, out, indentLevel, tokens, tags);
                     break;
 
                 case TEXT:
-                    String escapedText = escapeText(token.content.trim());
-                    if (!escapedText.isEmpty()) {
+                    String text = token.content.trim();
+                    if (!text.isEmpty()) {
                         if (hasInlineText) {
-                            result.append(escapedText);
-                            closeInlineTagIfNeeded(result);
+                            out.appendEscaped(text);
+                            inlineClosedTag = closeInlineTagIfNeeded(out, tags);
                         } else {
-                            result.append(getIndent(indentLevel)).append(escapedText).append("\n");
+                            out.indent(indentLevel).appendEscaped(text).newline();
                         }
                     }
                     break;
             }
         }
-
-        closeAllRemainingTags(result);
-        return result.toString().trim();
+        state.hasInlineText = hasInlineText;
+        state.inlineClosedTag = inlineClosedTag;
     }
 
-    private boolean processOpeningTag(XmlToken openingToken, StringBuilder result, int indentLevel, List<XmlToken> tokens, int currentIndex) {
-        if (result.length() > 0 && result.charAt(result.length() - 1) != '\n') {
-            result.append("\n");
+    private void finish(XmlTokenCursor tokens, XmlOutput out, State state) throws IOException {
+        int closed = closeAllRemainingTags(out, state.tags);
+        if (tokens.metrics != null) {
+            tokens.metrics.autoClosed(closed);
         }
+    }
 
-        result.append(getIndent(indentLevel)).append(openingToken.content);
+    private boolean processOpeningTag(XmlToken openingToken, XmlOutput out, int indentLevel, XmlTokenCursor tokens, TagStack tags) throws IOException {
+        if (indentLevel >= options.maxNesting()) {
+            throw new XmlLimitExceededException(XmlLimitExceededException.Limit.NESTING, options.maxNesting(),
+                    openingToken.start);
+        }
+        if (!out.isEmpty() && out.lastChar() != '\n') {
+            out.newline();
+        }
 
-        String openTagName = getTagName(openingToken.content);
-        tagDeque.offerLast(openTagName);
+        out.indent(indentLevel).append(openingToken.content);
 
-        boolean hasInlineText = isNextNonEmptyTokenText(tokens, currentIndex);
-        inlineTagDeque.offerLast(hasInlineText);
+        boolean hasInlineText = isNextNonEmptyTokenText(tokens);
+        tags.push(tags.intern(openingToken.content), hasInlineText);
 
         if (!hasInlineText) {
-            result.append("\n");
+            out.newline();
         }
 
         return hasInlineText;
     }
 
-    private void closeInlineTagIfNeeded(StringBuilder result) {
-        if (!inlineTagDeque.isEmpty() && inlineTagDeque.peekLast() != null && inlineTagDeque.peekLast()) {
-            inlineTagDeque.pollLast();
-            if (!tagDeque.isEmpty()) {
-                String tagToClose = tagDeque.pollLast();
-                result.append("</").append(tagToClose).append(">\n");
-            }
+    // Возвращает идентификатор закрытого тега или -1
+    private int closeInlineTagIfNeeded(XmlOutput out, TagStack tags) throws IOException {
+        if (!tags.isEmpty() && tags.isPeekInline()) {
+            int tagToClose = tags.pop();
+            out.append("</").append(tags.name(tagToClose)).append(">").newline();
+            return tagToClose;
         }
+        return -1;
     }
 
-    private void processClosingTag(XmlToken closingToken, StringBuilder result) {
-        String closingTagName = getTagName(closingToken.content);
-
-        if (tagDeque.isEmpty()) {
-            return;
+    // Возвращает false, если закрывающий тег не нашёл пары и отброшен
+    private boolean processClosingTag(XmlToken closingToken, XmlOutput out, FormatMetrics metrics, TagStack tags) throws IOException {
+        if (tags.isEmpty()) {
+            return false;
         }
+        // Имя, которое ни разу не открывалось, не получает идентификатора и просто отбрасывается
+        int closingTag = tags.find(closingToken.content);
 
-        if (!inlineTagDeque.isEmpty() && inlineTagDeque.peekLast() != null &&
-                inlineTagDeque.peekLast() && tagDeque.peekLast().equals(closingTagName)) {
-            inlineTagDeque.pollLast();
-            tagDeque.pollLast();
-            return;
+        if (tags.isPeekInline() && tags.peek() == closingTag) {
+            tags.pop();
+            return true;
         }
 
-        if (tagDeque.peekLast().equals(closingTagName)) {
-            if (!inlineTagDeque.isEmpty()) {
-                inlineTagDeque.pollLast();
+        if (tags.peek() == closingTag) {
+            tags.pop();
+            out.indent(tags.size()).append(closingToken.content).newline();
+        } else if (tags.isOpen(closingTag)) {
+            int closed = closeTagsUntil(out, closingTag, tags);
+            if (metrics != null) {
+                metrics.autoClosed(closed);
             }
-            tagDeque.pollLast();
-            result.append(getIndent(tagDeque.size())).append(closingToken.content).append("\n");
-        } else if (tagDeque.contains(closingTagName)) {
-            closeTagsUntil(result, closingTagName);
-
-            if (!tagDeque.isEmpty() && tagDeque.peekLast().equals(closingTagName)) {
-                if (!inlineTagDeque.isEmpty()) {
-                    inlineTagDeque.pollLast();
-                }
-                tagDeque.pollLast();
-                result.append(getIndent(tagDeque.size())).append(closingToken.content).append("\n");
+
+            if (!tags.isEmpty() && tags.peek() == closingTag) {
+                tags.pop();
+                out.indent(tags.size()).append(closingToken.content).newline();
             }
+        } else {
+            return false;
         }
+        return true;
     }
 
-    private void closeTagsUntil(StringBuilder result, String targetTag) {
-        while (!tagDeque.isEmpty() && !tagDeque.peekLast().equals(targetTag)) {
-            String tagToClose = tagDeque.pollLast();
-            if (!inlineTagDeque.isEmpty()) {
-                inlineTagDeque.pollLast();
-            }
-            result.append(getIndent(tagDeque.size())).append("</").append(tagToClose).append(">\n");
+    private int closeTagsUntil(XmlOutput out, int targetTag, TagStack tags) throws IOException {
+        int closed = 0;
+        while (!tags.isEmpty() && tags.peek() != targetTag) {
+            int tagToClose = tags.pop();
+            out.indent(tags.size()).append("</").append(tags.name(tagToClose)).append(">").newline();
+            closed++;
         }
+        return closed;
     }
 
-    private void closeAllRemainingTags(StringBuilder result) {
-        while (!tagDeque.isEmpty()) {
-            String tagToClose = tagDeque.pollLast();
-            if (!inlineTagDeque.isEmpty()) {
-                inlineTagDeque.pollLast();
-            }
-            result.append(getIndent(tagDeque.size())).append("</").append(tagToClose).append(">\n");
+    private int closeAllRemainingTags(XmlOutput out, TagStack tags) throws IOException {
+        int closed = 0;
+        while (!tags.isEmpty()) {
+            int tagToClose = tags.pop();
+            out.indent(tags.size()).append("</").append(tags.name(tagToClose)).append(">").newline();
+            closed++;
         }
+        return closed;
     }
 
+    // Всё, что переносится между токенами: стек открытых тегов и признаки текста в строку
+    private static class State {
+        final TagStack tags;
+        boolean hasInlineText;
+        int inlineClosedTag = -1; // тег, уже закрытый после текста в строку: его закрывающий тег ожидаем
 
+        State(TagStack tags) {
+            this.tags = tags;
+        }
 
-    private String getTagName(String tag) {
-        return tag.replaceAll("[</>]", "").split("\\s+")[0].trim();
+        State copy() {
+            State copy = new State(new TagStack(tags));
+            copy.hasInlineText = hasInlineText;
+            copy.inlineClosedTag = inlineClosedTag;
+            return copy;
+        }
     }
-
 }
\ No newline at end of file
@@ -0,0 +1,154 @@
+package prettyprint;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// Текст, в котором часто заменяются диапазоны (IncrementalXmlFormatter): куски строк в декартовом дереве
+// с неявным ключом - позицией. Замена диапазона стоит O(log кусков) плюс длину вставки: куски не копируются,
+// а режутся на виды той же строки. charAt - спуск по дереву; toString склеивает, только если его вызвать явно
+final class Rope implements CharSequence {
+    private Piece root;
+
+    Rope(String text) {
+        root = text.isEmpty() ? null : new Piece(text, 0, text.length());
+    }
+
+    @Override
+    public int length() {
+        return length(root);
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length());
+        }
+        Piece piece = root;
+        while (true) {
+            int left = length(piece.left);
+            if (index < left) {
+                piece = piece.left;
+                continue;
+            }
+            index -= left;
+            if (index < piece.to - piece.from) {
+                return piece.text.charAt(piece.from + index);
+            }
+            index -= piece.to - piece.from;
+            piece = piece.right;
+        }
+    }
+
+    // Копирует только запрошенный диапазон
+    @Override
+    public String subSequence(int start, int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length());
+        }
+        StringBuilder result = new StringBuilder(end - start);
+        append(result, root, start, end);
+        return result.toString();
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length());
+    }
+
+    // Заменяет символы [start, end) строкой text
+    void replace(int start, int end, String text) {
+        Piece[] head = split(root, start);
+        Piece[] tail = split(head[1], end - start);
+        Piece middle = text.isEmpty() ? null : new Piece(text, 0, text.length());
+        root = merge(merge(head[0], middle), tail[1]);
+    }
+
+    // Дописывает в result символы [start, end) поддерева piece; позиции отсчитываются от его начала
+    private static void append(StringBuilder result, Piece piece, int start, int end) {
+        while (piece != null && start < end) {
+            int left = length(piece.left);
+            if (start < left) {
+                append(result, piece.left, start, Math.min(end, left));
+            }
+            int own = piece.to - piece.from;
+            int from = Math.max(start - left, 0);
+            int to = Math.min(end - left, own);
+            if (from < to) {
+                result.append(piece.text, piece.from + from, piece.from + to);
+            }
+            start -= left + own;
+            end -= left + own;
+            piece = piece.right;
+            start = Math.max(start, 0);
+        }
+    }
+
+    // Делит дерево на первые at символов и остальное; кусок на границе режется на два вида той же строки
+    private static Piece[] split(Piece piece, int at) {
+        if (piece == null) {
+            return new Piece[2];
+        }
+        int left = length(piece.left);
+        int own = piece.to - piece.from;
+        if (at <= left) {
+            Piece[] parts = split(piece.left, at);
+            piece.left = parts[1];
+            piece.update();
+            parts[1] = piece;
+            return parts;
+        }
+        if (at >= left + own) {
+            Piece[] parts = split(piece.right, at - left - own);
+            piece.right = parts[0];
+            piece.update();
+            parts[0] = piece;
+            return parts;
+        }
+        int cut = piece.from + at - left;
+        Piece before = new Piece(piece.text, piece.from, cut);
+        Piece after = new Piece(piece.text, cut, piece.to);
+        return new Piece[]{merge(piece.left, before), merge(after, piece.right)};
+    }
+
+    private static Piece merge(Piece left, Piece right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            left.update();
+            return left;
+        }
+        right.left = merge(left, right.left);
+        right.update();
+        return right;
+    }
+
+    private static int length(Piece piece) {
+        return piece != null ? piece.length : 0;
+    }
+
+    // Кусок text[from, to) и длина всего его поддерева
+    private static final class Piece {
+        final String text;
+        final int from;
+        final int to;
+        final int priority = ThreadLocalRandom.current().nextInt();
+        Piece left;
+        Piece right;
+        int length;
+
+        Piece(String text, int from, int to) {
+            this.text = text;
+            this.from = from;
+            this.to = to;
+            this.length = to - from;
+        }
+
+        void update() {
+            length = Rope.length(left) + (to - from) + Rope.length(right);
+        }
+    }
+}
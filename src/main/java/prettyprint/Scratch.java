@@ -0,0 +1,85 @@
+package prettyprint;
+
+// Рабочие буферы, которые поток переиспользует между вызовами format. На время вызова буфер
+// забирается из слота (вложенный вызов в том же потоке просто получит новый) и возвращается
+// после него, если не вырос сверх лимита: иначе один большой документ держал бы память в каждом потоке.
+final class Scratch {
+    static final int MAX_RETAINED_CHARS = 256 * 1024;
+
+    private static final ThreadLocal<Scratch> LOCAL = ThreadLocal.withInitial(Scratch::new);
+
+    private char[] lexerBuffer;
+    private char[] outputBuffer;
+    private StringBuilder result;
+    private TagStack tags;
+
+    private Scratch() {
+    }
+
+    static char[] takeLexerBuffer(int length) {
+        Scratch scratch = LOCAL.get();
+        char[] buffer = scratch.lexerBuffer;
+        if (buffer == null || buffer.length < length) {
+            return new char[length];
+        }
+        scratch.lexerBuffer = null;
+        return buffer;
+    }
+
+    static void giveLexerBuffer(char[] buffer) {
+        if (buffer.length <= MAX_RETAINED_CHARS) {
+            LOCAL.get().lexerBuffer = buffer;
+        }
+    }
+
+    static char[] takeOutputBuffer(int length) {
+        Scratch scratch = LOCAL.get();
+        char[] buffer = scratch.outputBuffer;
+        if (buffer == null || buffer.length < length) {
+            return new char[length];
+        }
+        scratch.outputBuffer = null;
+        return buffer;
+    }
+
+    static void giveOutputBuffer(char[] buffer) {
+        if (buffer.length <= MAX_RETAINED_CHARS) {
+            LOCAL.get().outputBuffer = buffer;
+        }
+    }
+
+    static StringBuilder takeResult(int capacity) {
+        Scratch scratch = LOCAL.get();
+        StringBuilder result = scratch.result;
+        if (result == null) {
+            return new StringBuilder(capacity);
+        }
+        scratch.result = null;
+        result.ensureCapacity(capacity);
+        return result;
+    }
+
+    static void giveResult(StringBuilder result) {
+        if (result.capacity() <= MAX_RETAINED_CHARS) {
+            result.setLength(0);
+            LOCAL.get().result = result;
+        }
+    }
+
+    static TagStack takeTagStack() {
+        Scratch scratch = LOCAL.get();
+        TagStack tags = scratch.tags;
+        if (tags == null) {
+            return new TagStack();
+        }
+        scratch.tags = null;
+        tags.clear();
+        return tags;
+    }
+
+    static void giveTagStack(TagStack tags) {
+        if (!tags.isLarge()) {
+            LOCAL.get().tags = tags;
+        }
+    }
+}
@@ -1,11 +1,12 @@
 package prettyprint;
 
-import java.util.Stack;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
+// Старый форматтер: без экранирования текста и без обрезки пробелов по краям результата.
+// Токены берёт у общего лексера, а после открывающего тега смотрит только на следующий токен
 public class SimpleXMLPrettyPrinter {
-    private int indentSpaces;
+    private final int indentSpaces;
 
     public SimpleXMLPrettyPrinter() {
         this.indentSpaces = 2;
@@ -15,66 +16,91 @@ public class SimpleXMLPrettyPrinter {
     }
 
     public String format(String xml) {
-        Pattern pattern = Pattern.compile(
-                "(<\\?xml[^?]*\\?>)|" +        // XML декларация
-                        "(<!\\[CDATA\\[.*?\\]\\]>)|" + // CDATA
-                        "(<!--.*?-->)|" +              // Комментарий
-                        "(</[^>]+>)|" +               // Закрывающий тег
-                        "(<[^>]+/>)|" +               // Самозакрывающийся тег
-                        "(<[^>]+>)|" +                // Открывающий тег
-                        "([^<]+)"                     // Текст
-        );
+        StringBuilder result = new StringBuilder(xml.length() + xml.length() / 4);
+        XmlOutput out = new XmlOutput(result, indentSpaces, false);
+        try {
+            format(xml, new XmlTokenCursor(new XmlLexer(xml)), out);
+            out.finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder не бросает IOException
+        }
+        return result.toString();
+    }
 
-        Matcher matcher = pattern.matcher(xml);
-        StringBuilder result = new StringBuilder();
+    private void format(String xml, XmlTokenCursor tokens, XmlOutput out) throws IOException {
         int indentLevel = 0;
         boolean hasText = false;
 
-        while (matcher.find()) {
-            String token = matcher.group(0);
-
-            if (token.startsWith("<?xml")) {
-                result.append(token).append("\n");
-            } else if (token.startsWith("<!--")) {
-                result.append(getIndent(indentLevel)).append(token).append("\n");
-            } else if (token.startsWith("<![CDATA[")) {
-                result.append(getIndent(indentLevel)).append(token).append("\n");
-            } else if (token.startsWith("</")) {
-                indentLevel--;
-                if (hasText){
-                    result.append(token);
-                    hasText = false;
-                    result.append("\n");
-                } else{
-                    result.append(getIndent(indentLevel)).append(token).append("\n");
-                }
-            } else if (token.endsWith("/>")) {
-                result.append(getIndent(indentLevel)).append(token).append("\n");
-            } else if (token.startsWith("<") && !token.startsWith("</")) {
-                result.append(getIndent(indentLevel)).append(token);
-                indentLevel++;
-                String remaining = xml.substring(matcher.end());
-                if (!remaining.trim().startsWith("<") && !remaining.trim().isEmpty()) {
-                    hasText = true;
-                }
-                else {
-                    result.append("\n");
-                }
-            } else {
-                result.append(token.trim());
-            }
+        while (tokens.hasNext()) {
+            XmlToken token = tokens.next();
 
-        }
+            switch (token.type) {
+                case XML_DECLARATION:
+                    out.append(token.content).newline();
+                    break;
 
-        return result.toString();
-    }
+                case COMMENT:
+                case CDATA:
+                case SELF_CLOSING_TAG:
+                    out.indent(indentLevel).append(token.content).newline();
+                    break;
 
+                case CLOSING_TAG:
+                    indentLevel--;
+                    if (hasText) {
+                        out.append(token.content);
+                        hasText = false;
+                        out.newline();
+                    } else {
+                        out.indent(indentLevel).append(token.content).newline();
+                    }
+                    break;
 
+                case OPENING_TAG:
+                    out.indent(indentLevel).append(token.content);
+                    indentLevel++;
+                    if (isFollowedByText(xml, token, tokens.peek())) {
+                        hasText = true;
+                    } else {
+                        out.newline();
+                    }
+                    break;
 
+                case TEXT:
+                    if (endsLikeSelfClosingTag(xml, token)) {
+                        // Старый форматтер различал токены по виду, и такой текст печатался как самозакрывающийся тег
+                        int start = (int) token.start;
+                        while (start > 0 && xml.charAt(start - 1) <= ' ') {
+                            start--;
+                        }
+                        out.indent(indentLevel).append(xml.substring(start, (int) token.end)).newline();
+                    } else {
+                        out.append(token.content);
+                    }
+                    break;
+            }
+        }
+    }
 
+    // Текст без хвостовых пробелов (он доходит до '<' или конца входа), который оканчивается на "/>"
+    private static boolean endsLikeSelfClosingTag(String xml, XmlToken text) {
+        int end = (int) text.end;
+        return text.content.endsWith("/>") && (end == xml.length() || xml.charAt(end) == '<');
+    }
 
-    private String getIndent(int level) {
-        return " ".repeat(level * indentSpaces);
+    // Текст идёт сразу за тегом, если первый непробельный символ после тега не '<'. Пропущенный лексером
+    // одиночный '<' тоже считается, поэтому промежуток до текста проверяется по входу - он состоит
+    // из пробелов, которые следующий токен всё равно отбрасывает, так что просмотр остаётся линейным
+    private static boolean isFollowedByText(String xml, XmlToken tag, XmlToken next) {
+        if (next == null || next.type != XmlToken.TokenType.TEXT) {
+            return false;
+        }
+        for (int i = (int) tag.end; i < next.start; i++) {
+            if (xml.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
     }
 
 }
@@ -1,13 +1,10 @@
 package prettyprint;
 
+import java.io.IOException;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class SimpleXmlFormatter extends XmlFormatter {
 
-    private int indentSpaces;
-
     public SimpleXmlFormatter() {
         super();
     }
@@ -15,75 +12,157 @@ public class SimpleXmlFormatter extends XmlFormatter {
         super(indentSpaces);
     }
 
+    public SimpleXmlFormatter(int indentSpaces, FormatListener listener) {
+        super(indentSpaces, listener);
+    }
+
+    public SimpleXmlFormatter(FormatOptions options) {
+        this(options, null);
+    }
+
+    public SimpleXmlFormatter(FormatOptions options, FormatListener listener) {
+        super(options.withAutoCloseTags(false), listener);
+    }
+
+    @Override
+    protected void format(XmlTokenCursor tokens, XmlOutput out) throws IOException {
+        format(tokens, out, new State(), Long.MAX_VALUE);
+    }
+
     @Override
-    public String format(String xml) {
-        List<XmlToken> tokens = tokenizer.tokenize(xml);
-        StringBuilder result = new StringBuilder();
-        int indentLevel = 0;
-        boolean hasInlineText = false;
-
-        for (int i = 0; i < tokens.size(); i++) {
-            XmlToken token = tokens.get(i);
+    Resumable resumable(boolean trackTags) {
+        State state = new State();
+        if (trackTags) {
+            state.tags = new TagStack();
+        }
+        return resumable(state);
+    }
+
+    private Resumable resumable(State state) {
+        return new Resumable() {
+            @Override
+            public void resume(XmlTokenCursor tokens, XmlOutput out) throws IOException {
+                format(tokens, out, state, Long.MAX_VALUE);
+            }
+
+            @Override
+            public void finish(XmlTokenCursor tokens, XmlOutput out) {
+            }
+
+            @Override
+            public List<String> openTags() {
+                return state.tags.openNames();
+            }
+
+            @Override
+            public Resumable copy() {
+                return resumable(state.copy());
+            }
+        };
+    }
+
+    // Форматирует токены, которые начинаются до позиции end, продолжая с состояния state;
+    // по окончании state содержит состояние после последнего обработанного токена
+    void format(XmlTokenCursor tokens, XmlOutput out, State state, long end) throws IOException {
+        int indentLevel = state.indentLevel;
+        boolean hasInlineText = state.hasInlineText;
+        int maxNesting = options.maxNesting();
+        TagStack tags = state.tags;
+
+        while (tokens.hasNext() && tokens.peek().start < end) {
+            XmlToken token = tokens.next();
             switch (token.type) {
                 case XML_DECLARATION:
-                    result.append(token.content).append("\n");
+                    out.append(token.content).newline();
                     break;
 
                 case COMMENT:
                 case CDATA:
-                    result.append(getIndent(indentLevel)).append(token.content).append("\n");
+                    out.indent(indentLevel).append(token.content).newline();
                     break;
 
                 case CLOSING_TAG:
                     indentLevel--;
+                    if (tags != null && !tags.isEmpty() && tags.size() > indentLevel) {
+                        tags.pop();
+                    }
                     if (hasInlineText) {
-                        result.append(token.content).append("\n");
+                        out.append(token.content).newline();
                         hasInlineText = false;
                     } else {
-                        result.append(getIndent(indentLevel)).append(token.content).append("\n");
+                        out.indent(indentLevel).append(token.content).newline();
                     }
                     break;
 
                 case SELF_CLOSING_TAG:
-                    result.append(getIndent(indentLevel)).append(token.content).append("\n");
+                    out.indent(indentLevel).append(token.content).newline();
                     break;
 
                 case OPENING_TAG:
-                    result.append(getIndent(indentLevel)).append(token.content);
+                    if (indentLevel >= maxNesting) {
+                        throw new XmlLimitExceededException(XmlLimitExceededException.Limit.NESTING, maxNesting, token.start);
+                    }
+                    out.indent(indentLevel).append(token.content);
                     indentLevel++;
+                    if (tags != null && indentLevel > 0) {
+                        tags.push(tags.intern(token.content), false);
+                    }
 
-                    boolean nextIsText = isNextNonEmptyTokenText(tokens, i);
+                    boolean nextIsText = isNextNonEmptyTokenText(tokens);
                     if (nextIsText) {
                         hasInlineText = true;
                     } else {
-                        result.append("\n");
+                        out.newline();
                     }
                     break;
 
                 case TEXT:
-                    String escapedText = escapeText(token.content.trim());
-                    if (!escapedText.isEmpty()) {
+                    String text = token.content.trim();
+                    if (!text.isEmpty()) {
                         if (hasInlineText) {
-                            result.append(escapedText);
-                            if (!isNextTokenClose(tokens, i)){
-                                result.append(getIndent(indentLevel)).append("\n");
+                            out.appendEscaped(text);
+                            if (!isNextTokenClose(tokens)){
+                                out.indent(indentLevel).newline();
                             }
                         } else {
-                            result.append(getIndent(indentLevel)).append(escapedText).append("\n");
+                            out.indent(indentLevel).appendEscaped(text).newline();
                         }
                     }
                     break;
             }
         }
-
-        return result.toString().trim();
+        state.indentLevel = indentLevel;
+        state.hasInlineText = hasInlineText;
     }
 
-    private boolean isNextTokenClose(List<XmlToken> tokens, int currentIndex) {
-        XmlToken nextToken = tokens.get(currentIndex + 1);
-        if (nextToken.type == XmlToken.TokenType.CLOSING_TAG) {
+    private boolean isNextTokenClose(XmlTokenCursor tokens) {
+        XmlToken nextToken = tokens.peek();
+        if (nextToken != null && nextToken.type == XmlToken.TokenType.CLOSING_TAG) {
             return true;
         }
         return false;
     }
+
+    // Всё, что переносится между токенами: уровень отступа и признак текста в строку.
+    // tags - имена открытых тегов, если за ними нужно следить (resumable(true)): их столько же, сколько
+    // уровней выше нуля
+    static class State {
+        int indentLevel;
+        boolean hasInlineText;
+        TagStack tags;
+
+        State() {
+        }
+
+        State(int indentLevel, boolean hasInlineText) {
+            this.indentLevel = indentLevel;
+            this.hasInlineText = hasInlineText;
+        }
+
+        State copy() {
+            State copy = new State(indentLevel, hasInlineText);
+            copy.tags = tags != null ? new TagStack(tags) : null;
+            return copy;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,216 @@
+package prettyprint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+// Стек открытых тегов для режима восстановления. Имена тегов интернируются в таблицу символов
+// и хранятся как int; признак "тег с текстом в строку" лежит в BitSet, а счётчики открытых
+// тегов по каждому имени позволяют за O(1) узнать, открыт ли тег где-то ниже по стеку.
+class TagStack {
+    private int[] stack = new int[16];
+    private final BitSet inline;
+    private int size;
+
+    private int[] openCounts = new int[16];
+    private String[] names = new String[16];
+    private int nameCount;
+    private int[] slots = new int[32]; // id + 1, 0 означает пустую ячейку
+
+    TagStack() {
+        inline = new BitSet();
+    }
+
+    // Копия вместе с таблицей имён: идентификаторы тегов в копии те же
+    TagStack(TagStack other) {
+        stack = other.stack.clone();
+        inline = (BitSet) other.inline.clone();
+        size = other.size;
+        openCounts = other.openCounts.clone();
+        names = other.names.clone();
+        nameCount = other.nameCount;
+        slots = other.slots.clone();
+    }
+
+    void clear() {
+        size = 0;
+        inline.clear();
+        Arrays.fill(openCounts, 0, nameCount, 0);
+        Arrays.fill(names, 0, nameCount, null);
+        Arrays.fill(slots, 0);
+        nameCount = 0;
+    }
+
+    // Стек, разросшийся на необычно глубоком документе или словаре имён, не стоит держать для повторного использования
+    boolean isLarge() {
+        return stack.length > 1024 || names.length > 1024;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void push(int id, boolean inlineText) {
+        if (size == stack.length) {
+            stack = Arrays.copyOf(stack, size * 2);
+        }
+        stack[size] = id;
+        inline.set(size, inlineText);
+        size++;
+        openCounts[id]++;
+    }
+
+    int pop() {
+        int id = stack[--size];
+        openCounts[id]--;
+        return id;
+    }
+
+    int peek() {
+        return stack[size - 1];
+    }
+
+    boolean isPeekInline() {
+        return inline.get(size - 1);
+    }
+
+    boolean isOpen(int id) {
+        return id >= 0 && openCounts[id] > 0;
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    // Имена открытых тегов от дна стека к вершине
+    List<String> openNames() {
+        List<String> open = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            open.add(names[stack[i]]);
+        }
+        return open;
+    }
+
+    // Возвращает идентификатор имени тега, добавляя имя в таблицу при первой встрече
+    int intern(String tag) {
+        return lookup(tag, true);
+    }
+
+    // Возвращает идентификатор имени тега или -1, если такое имя ещё не встречалось
+    int find(String tag) {
+        return lookup(tag, false);
+    }
+
+    private int lookup(String tag, boolean add) {
+        int start = 0;
+        int end = tag.length();
+        while (start < end && isMarkup(tag.charAt(start))) {
+            start++;
+        }
+        int nameEnd = start;
+        while (nameEnd < end && !isSpace(tag.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        end = nameEnd;
+        while (end > start && isMarkup(tag.charAt(end - 1))) {
+            end--;
+        }
+        if (!isPlainName(tag, start, end)) {
+            // Редкий случай вроде <a/b>: повторяем прежнюю семантику через промежуточную строку
+            String name = slowTagName(tag);
+            return lookup(name, 0, name.length(), add);
+        }
+        return lookup(tag, start, end, add);
+    }
+
+    private int lookup(String text, int start, int end, boolean add) {
+        int length = end - start;
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+        while (slots[slot] != 0) {
+            String name = names[slots[slot] - 1];
+            if (name.length() == length && name.regionMatches(0, text, start, length)) {
+                return slots[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (!add) {
+            return -1;
+        }
+
+        int id = nameCount++;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, id * 2);
+            openCounts = Arrays.copyOf(openCounts, id * 2);
+        }
+        names[id] = text.substring(start, end);
+        slots[slot] = id + 1;
+        if (nameCount * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < nameCount; id++) {
+            String name = names[id];
+            int slot = mix(name.hashCode()) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean isPlainName(String tag, int start, int end) {
+        if (start < end && (tag.charAt(start) <= ' ' || tag.charAt(end - 1) <= ' ')) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (isMarkup(tag.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Эквивалент tag.replaceAll("[</>]", "").split("\\s+")[0].trim()
+    private static String slowTagName(String tag) {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < tag.length(); i++) {
+            char c = tag.charAt(i);
+            if (isMarkup(c)) {
+                continue;
+            }
+            if (isSpace(c)) {
+                break;
+            }
+            name.append(c);
+        }
+        return name.toString().trim();
+    }
+
+    private static boolean isMarkup(char c) {
+        return c == '<' || c == '/' || c == '>';
+    }
+
+    // Набор символов \s в регулярных выражениях Java
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -0,0 +1,169 @@
+package prettyprint;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Форматирует на месте все подходящие файлы каталога в пуле потоков. Обход каталога блокируется,
+// пока в работе threads * 2 файлов, так что в памяти одновременно не больше этого числа документов
+class TreeFormatter {
+    private final XmlFormatter formatter;
+    private final int threads;
+
+    private final AtomicInteger files = new AtomicInteger();
+    private final AtomicInteger changedFiles = new AtomicInteger();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final Map<Path, Exception> errors = new ConcurrentHashMap<>();
+
+    private long started;
+    private Semaphore inFlight;
+    private ExecutorService executor;
+
+    TreeFormatter(boolean autoCloseTags, int indentSpaces, int threads) {
+        this(FormatOptions.DEFAULT.withAutoCloseTags(autoCloseTags).withIndent(indentSpaces), threads);
+    }
+
+    // Файл, нарушивший ограничение из options, попадает в ошибки результата и не переписывается
+    TreeFormatter(FormatOptions options, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive: " + threads);
+        }
+        this.formatter = XmlPrettyPrinter.formatter(options);
+        this.threads = threads;
+    }
+
+    // glob применяется к пути относительно root, например "**.xml" или "config/*.xml"
+    BatchResult format(Path root, String glob) throws IOException {
+        start();
+        try {
+            submitTree(root, glob);
+            return finish();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Пакет из нескольких источников: start, затем submitTree/submitFile в любом порядке, затем finish
+    void start() {
+        started = System.nanoTime();
+        inFlight = new Semaphore(threads * 2);
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    void submitTree(Path root, String glob) throws IOException {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                if (attributes.isRegularFile() && !isTempFile(file) && matcher.matches(root.relativize(file))) {
+                    submitFile(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // Временный файл соседнего потока мог исчезнуть между чтением каталога и чтением атрибутов
+                if (!isTempFile(file)) {
+                    errors.put(file, e);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    void submitFile(Path file) throws InterruptedIOException {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch formatting interrupted");
+        }
+        files.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                formatFile(file);
+            } catch (IOException | RuntimeException e) {
+                errors.put(file, e);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    // Дожидается всех отправленных файлов
+    BatchResult finish() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch formatting interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+        return new BatchResult(files.get(), changedFiles.get(), bytesRead.get(), bytesWritten.get(),
+                Duration.ofNanos(System.nanoTime() - started), Collections.unmodifiableMap(new TreeMap<>(errors)));
+    }
+
+    // Временные файлы, которые в этот момент пишут соседние потоки (см. createSiblingTempFile)
+    private static boolean isTempFile(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(".") && name.endsWith(".tmp");
+    }
+
+    // Файл переписывается, только если результат отличается от исходного содержимого.
+    // Сжатый gzip файл сравнивается по распакованному содержимому и остаётся сжатым
+    private void formatFile(Path file) throws IOException {
+        byte[] input = Files.readAllBytes(file);
+        bytesRead.addAndGet(input.length);
+        boolean compressed = Gzip.isGzip(input);
+        byte[] content = compressed ? Gzip.decompress(input) : input;
+        String xml = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(content)).toString();
+        String formatted = formatter.format(xml);
+        if (formatted.equals(xml)) {
+            return;
+        }
+        byte[] output = formatted.getBytes(StandardCharsets.UTF_8);
+        if (compressed) {
+            output = Gzip.compress(output);
+        }
+        Path tempFile = XmlPrettyPrinter.createSiblingTempFile(file);
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(output);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            XmlPrettyPrinter.replaceAtomically(tempFile, file);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        changedFiles.incrementAndGet();
+        bytesWritten.addAndGet(output.length);
+    }
+}
@@ -0,0 +1,323 @@
+package prettyprint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Индекс элементов одной глубины в большом файле (XmlPrettyPrinter.indexElements): для каждого элемента -
+// границы в байтах и стек открытых вокруг него тегов. По индексу элемент форматируется отдельно
+// (XmlPrettyPrinter.formatElement): чтение начинается с его первого байта и кончается на последнем, поэтому
+// поиск стоит одинаково в файле любого размера.
+// Файл индекса: заголовок, записи фиксированного размера (начало, конец, номер стека) и таблица стеков,
+// каждый из которых записан один раз: у элементов одной глубины стек обычно общий. Запись n и её стек читаются
+// по смещениям, без просмотра остального индекса. Заголовок помнит размер и время изменения файла,
+// устаревший индекс не используется.
+// Файл читается по байтам как UTF-8, как в formatFileToFileParallel; глубина считается как в SimpleXmlFormatter
+public final class XmlElementIndex implements Closeable {
+    private static final int MAGIC = 0x5849_4458; // "XIDX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final int RECORD_SIZE = 20;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long fileModified;
+    private final int depth;
+    private final int stackCount;
+    private final long size;
+    private final long stacksOffset;
+
+    private XmlElementIndex(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = read(0, HEADER_SIZE);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Not an element index");
+        }
+        fileSize = header.getLong();
+        fileModified = header.getLong();
+        depth = header.getInt();
+        stackCount = header.getInt();
+        size = header.getLong();
+        stacksOffset = header.getLong();
+    }
+
+    public static XmlElementIndex open(Path index) throws IOException {
+        FileChannel channel = FileChannel.open(index, StandardOpenOption.READ);
+        try {
+            return new XmlElementIndex(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Один проход по xml: элементы глубины depth (0 - корень) попадают в index. Возвращает их количество
+    public static long build(Path xml, Path index, int depth) throws IOException {
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth must be >= 0: " + depth);
+        }
+        Gzip.requireUncompressed(xml);
+        try (FileChannel input = FileChannel.open(xml, StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long fileSize = input.size();
+            long fileModified = Files.getLastModifiedTime(xml).toMillis();
+            Writer writer = new Writer(output, HEADER_SIZE);
+            long count = writer.scan(input, depth);
+            long stacksOffset = writer.offset();
+            writer.writeStacks();
+            writer.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(fileSize).putLong(fileModified).putInt(depth)
+                    .putInt(writer.stacks.size()).putLong(count).putLong(stacksOffset).flip();
+            write(output, header, 0);
+            return count;
+        }
+    }
+
+    // Количество элементов в индексе
+    public long size() {
+        return size;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    // true, если xml не менялся с построения индекса
+    public boolean isCurrent(Path xml) throws IOException {
+        return Files.size(xml) == fileSize && Files.getLastModifiedTime(xml).toMillis() == fileModified;
+    }
+
+    public Element element(long n) throws IOException {
+        if (n < 0 || n >= size) {
+            throw new IndexOutOfBoundsException("Element " + n + " of " + size);
+        }
+        ByteBuffer record = read(HEADER_SIZE + n * RECORD_SIZE, RECORD_SIZE);
+        long start = record.getLong();
+        long end = record.getLong();
+        int stack = record.getInt();
+        if (stack < 0 || stack >= stackCount) {
+            throw new IOException("Element index is corrupt: stack " + stack + " of " + stackCount);
+        }
+        long stackOffset = read(stacksOffset + stack * 8L, 8).getLong();
+        int length = read(stackOffset, 4).getInt();
+        String names = StandardCharsets.UTF_8.decode(read(stackOffset + 4, length)).toString();
+        return new Element(start, end, names.isEmpty() ? List.of() : List.of(names.split("/")));
+    }
+
+    // Элемент n, отформатированный с тем же отступом, что у него в форматировании всего файла
+    public String format(Path xml, long n, FormatOptions options) throws IOException {
+        if (!isCurrent(xml)) {
+            throw new IllegalStateException("File changed since the index was built: " + xml);
+        }
+        Element element = element(n);
+        SimpleXmlFormatter formatter = new SimpleXmlFormatter(options);
+        StringBuilder result = new StringBuilder();
+        try (FileChannel input = FileChannel.open(xml, StandardOpenOption.READ)) {
+            MappedFileReader reader = new MappedFileReader(input, element.start, StandardCharsets.ISO_8859_1);
+            XmlTokenCursor tokens = new XmlTokenCursor(new XmlLexer(reader, element.start), null,
+                    options.tokenFilter(), false);
+            // Отступ первой строки не обрезается: это не начало документа
+            XmlOutput out = new XmlOutput(result, formatter.options, true).continued();
+            formatter.format(tokens, out, new SimpleXmlFormatter.State(depth, false), element.end);
+            out.finish();
+            out.release();
+            tokens.release();
+        }
+        return new String(result.toString().getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Element index is truncated");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    public static final class Element {
+        private final long start;
+        private final long end;
+        private final List<String> openTags;
+
+        Element(long start, long end, List<String> openTags) {
+            this.start = start;
+            this.end = end;
+            this.openTags = openTags;
+        }
+
+        // Смещение в байтах первого байта открывающего тега
+        public long start() {
+            return start;
+        }
+
+        // Смещение в байтах после закрывающего тега
+        public long end() {
+            return end;
+        }
+
+        // Теги, открытые вокруг элемента, от внешнего к внутреннему
+        public List<String> openTags() {
+            return openTags;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + ", " + end + ") in " + openTags;
+        }
+    }
+
+    // Проход построения: записи копятся в буфере и уходят в файл пачками, стеки собираются в памяти
+    private static final class Writer {
+        private final FileChannel output;
+        private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        private final Map<String, Integer> stacks = new HashMap<>();
+        private String[] stackNames = new String[16];
+        private long position; // смещение в файле начала буфера
+
+        Writer(FileChannel output, long position) {
+            this.output = output;
+            this.position = position;
+        }
+
+        long offset() {
+            return position + buffer.position();
+        }
+
+        // Стек открытых тегов меняется только на уровнях выше depth, поэтому номер стека пересчитывается
+        // лишь после таких изменений, а не для каждого элемента
+        long scan(FileChannel input, int depth) throws IOException {
+            long offset = XmlEncoding.utf8ByteOrderMarkLength(input);
+            XmlLexer lexer = new XmlLexer(new MappedFileReader(input, offset, StandardCharsets.ISO_8859_1), offset);
+            TagStack tags = new TagStack();
+            int level = 0;
+            int stack = -1;
+            long start = -1;
+            long count = 0;
+            try {
+                XmlToken.TokenType type;
+                while ((type = lexer.nextTokenType()) != null) {
+                    switch (type) {
+                        case OPENING_TAG:
+                            if (level == depth) {
+                                stack = stack >= 0 ? stack : stack(tags);
+                                start = lexer.tokenStart();
+                            } else if (level >= 0 && level < depth) {
+                                tags.push(tags.intern(lexer.tokenText()), false);
+                                stack = -1;
+                            }
+                            level++;
+                            break;
+
+                        case CLOSING_TAG:
+                            level--;
+                            if (level == depth && start >= 0) {
+                                record(start, lexer.tokenEnd(), stack);
+                                start = -1;
+                                count++;
+                            } else if (!tags.isEmpty() && tags.size() > level) {
+                                tags.pop();
+                                stack = -1;
+                            }
+                            break;
+
+                        case SELF_CLOSING_TAG:
+                            if (level == depth) {
+                                stack = stack >= 0 ? stack : stack(tags);
+                                record(lexer.tokenStart(), lexer.tokenEnd(), stack);
+                                count++;
+                            }
+                            break;
+
+                        default:
+                    }
+                }
+            } finally {
+                lexer.release();
+            }
+            return count;
+        }
+
+        private int stack(TagStack tags) {
+            // Имена прочитаны как Latin-1 из байтов UTF-8
+            String names = new String(String.join("/", tags.openNames()).getBytes(StandardCharsets.ISO_8859_1),
+                    StandardCharsets.UTF_8);
+            Integer id = stacks.get(names);
+            if (id == null) {
+                id = stacks.size();
+                stacks.put(names, id);
+                if (id == stackNames.length) {
+                    stackNames = Arrays.copyOf(stackNames, id * 2);
+                }
+                stackNames[id] = names;
+            }
+            return id;
+        }
+
+        private void record(long start, long end, int stack) throws IOException {
+            reserve(RECORD_SIZE);
+            buffer.putLong(start).putLong(end).putInt(stack);
+        }
+
+        // Таблица смещений стеков, затем сами стеки: длина и имена через '/' в UTF-8
+        void writeStacks() throws IOException {
+            int count = stacks.size();
+            byte[][] encoded = new byte[count][];
+            long offset = offset() + count * 8L;
+            for (int i = 0; i < count; i++) {
+                encoded[i] = stackNames[i].getBytes(StandardCharsets.UTF_8);
+                reserve(8);
+                buffer.putLong(offset);
+                offset += 4 + encoded[i].length;
+            }
+            for (byte[] names : encoded) {
+                reserve(4);
+                buffer.putInt(names.length);
+                for (int i = 0; i < names.length; i += WRITE_BUFFER_SIZE) {
+                    int length = Math.min(WRITE_BUFFER_SIZE, names.length - i);
+                    reserve(length);
+                    buffer.put(names, i, length);
+                }
+            }
+        }
+
+        private void reserve(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            int length = buffer.remaining();
+            write(output, buffer, position);
+            position += length;
+            buffer.clear();
+        }
+    }
+}
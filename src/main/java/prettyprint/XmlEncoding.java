@@ -0,0 +1,103 @@
+package prettyprint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+
+// Определение кодировки байтового входа: сначала метка порядка байтов, затем псевдоатрибут encoding
+// в объявлении XML, иначе UTF-8, как требует спецификация
+final class XmlEncoding {
+
+    private XmlEncoding() {
+    }
+
+    // Кодировка по метке порядка байтов в начале буфера или null
+    static Charset fromByteOrderMark(ByteBuffer xml) {
+        int p = xml.position();
+        if (xml.remaining() >= 3 && xml.get(p) == (byte) 0xEF && xml.get(p + 1) == (byte) 0xBB && xml.get(p + 2) == (byte) 0xBF) {
+            return StandardCharsets.UTF_8;
+        }
+        if (xml.remaining() >= 2 && xml.get(p) == (byte) 0xFE && xml.get(p + 1) == (byte) 0xFF) {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (xml.remaining() >= 2 && xml.get(p) == (byte) 0xFF && xml.get(p + 1) == (byte) 0xFE) {
+            return StandardCharsets.UTF_16LE;
+        }
+        // UTF-16 без метки: объявление "<?" с нулевыми старшими байтами
+        if (xml.remaining() >= 4 && xml.get(p) == 0 && xml.get(p + 1) == '<' && xml.get(p + 2) == 0 && xml.get(p + 3) == '?') {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (xml.remaining() >= 4 && xml.get(p) == '<' && xml.get(p + 1) == 0 && xml.get(p + 2) == '?' && xml.get(p + 3) == 0) {
+            return StandardCharsets.UTF_16LE;
+        }
+        return null;
+    }
+
+    // Длина метки порядка байтов UTF-8 в начале файла: 3 или 0
+    static int utf8ByteOrderMarkLength(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(3);
+        while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+        }
+        head.flip();
+        return fromByteOrderMark(head) == StandardCharsets.UTF_8 ? 3 : 0;
+    }
+
+    static int byteOrderMarkLength(ByteBuffer xml, Charset charset) {
+        int p = xml.position();
+        if (charset == StandardCharsets.UTF_8) {
+            return 3;
+        }
+        return xml.remaining() >= 2 && (xml.get(p) == (byte) 0xFE || xml.get(p) == (byte) 0xFF) ? 2 : 0;
+    }
+
+    // Значение encoding="..." из токена объявления XML или null
+    static String declared(String declaration) {
+        int i = declaration.indexOf("encoding");
+        if (i < 0) {
+            return null;
+        }
+        i += "encoding".length();
+        while (i < declaration.length() && declaration.charAt(i) <= ' ') {
+            i++;
+        }
+        if (i >= declaration.length() || declaration.charAt(i) != '=') {
+            return null;
+        }
+        i++;
+        while (i < declaration.length() && declaration.charAt(i) <= ' ') {
+            i++;
+        }
+        if (i >= declaration.length() || (declaration.charAt(i) != '"' && declaration.charAt(i) != '\'')) {
+            return null;
+        }
+        int end = declaration.indexOf(declaration.charAt(i), i + 1);
+        return end < 0 ? null : declaration.substring(i + 1, end);
+    }
+
+    // Кодировка из encoding="..." в объявлении XML или null, если её там нет, имя некорректно, JVM такой
+    // кодировки не знает или не умеет в ней записывать. Документ с null форматируется по байтам, как документ
+    // без объявления (UTF-8), так же, как format(String) не обращает внимания на объявление
+    static Charset declaredCharset(String declaration) {
+        String name = declared(declaration);
+        if (name == null) {
+            return null;
+        }
+        try {
+            Charset charset = Charset.forName(name);
+            return charset.canEncode() ? charset : null;
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            return null;
+        }
+    }
+
+    // Кодировки, в которых разметку можно размечать по байтам: ASCII в них однобайтовый,
+    // а все байты многобайтовых символов >= 0x80
+    static boolean isAsciiTransparent(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+}
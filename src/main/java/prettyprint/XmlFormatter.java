@@ -1,41 +1,316 @@
 // BaseXmlFormatter.java
 package prettyprint;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.function.BooleanSupplier;
 
 public abstract class XmlFormatter {
-    protected int indentSpaces;
-    protected XmlTokenizer tokenizer;
+    static final String JFR_PROPERTY = "prettyprint.jfr";
+
+    // Загрузка любого подкласса jdk.jfr.Event поднимает инфраструктуру JFR и стоит сотни миллисекунд
+    // холодного старта, поэтому короткоживущий процесс может отключить событие: -Dprettyprint.jfr=false.
+    // Свойство читается один раз при загрузке класса, дальше значение не меняется
+    static final boolean FLIGHT_RECORDER_EVENTS =
+            Boolean.parseBoolean(System.getProperty(JFR_PROPERTY, "true"));
+
+    protected final int indentSpaces;
+    protected final FormatOptions options;
+    protected final XmlTokenizer tokenizer;
+    private final FormatListener listener;
 
     public XmlFormatter() {
-        this.indentSpaces = 2;
-        this.tokenizer = new XmlTokenizer();
+        this(2);
     }
 
     public XmlFormatter(int indentSpaces) {
-        this.indentSpaces = indentSpaces;
+        this(indentSpaces, null);
+    }
+
+    public XmlFormatter(int indentSpaces, FormatListener listener) {
+        this(FormatOptions.DEFAULT.withIndent(indentSpaces), listener);
+    }
+
+    public XmlFormatter(FormatOptions options, FormatListener listener) {
+        this.indentSpaces = options.indentSpaces();
+        this.options = options;
         this.tokenizer = new XmlTokenizer();
+        this.listener = listener;
     }
 
-    public abstract String format(String xml);
+    public String format(String xml) {
+        try {
+            return formatString(xml);
+        } catch (XmlLimitExceededException e) {
+            if (!options.compactOnOverflow()) {
+                throw e;
+            }
+            return compactFormatter().format(xml);
+        }
+    }
 
-    public String escapeText(String text) {
-        return text.replace("&", "&amp;")
-                .replace("\"", "&quot;")
-                .replace("'", "&apos;");
+    private String formatString(String xml) {
+        StringBuilder result = Scratch.takeResult(xml.length() + xml.length() / 4);
+        try {
+            FormatEvent event = beginEvent();
+            FormatMetrics metrics = startMetrics(event);
+            format(tokenizer.cursor(xml, metrics, options.tokenFilter()), result, event);
+            return result.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder не бросает IOException
+        } finally {
+            Scratch.giveResult(result);
+        }
+    }
+
+    // Результат в кусках (ChunkedText): без склейки в String и без предела его длины,
+    // например при глубоких отступах
+    public ChunkedText formatChunked(String xml) {
+        ChunkedText result = new ChunkedText();
+        try {
+            FormatEvent event = beginEvent();
+            format(tokenizer.cursor(xml, startMetrics(event), options.tokenFilter()), result, event);
+            return result;
+        } catch (XmlLimitExceededException e) {
+            if (!options.compactOnOverflow()) {
+                throw e;
+            }
+            return compactFormatter().formatChunked(xml);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // ChunkedText не бросает IOException
+        }
+    }
+
+    // Потоковое форматирование: память ограничена глубиной вложенности и размером буфера, а не документом
+    public void format(Reader in, Appendable out) throws IOException {
+        format(in, out, null);
+    }
+
+    // stop != null: форматирование кончается, как только stop вернёт true (XmlTokenCursor.stopWhen)
+    void format(Reader in, Appendable out, BooleanSupplier stop) throws IOException {
+        try {
+            FormatEvent event = beginEvent();
+            FormatMetrics metrics = startMetrics(event);
+            format(tokenizer.cursor(in, metrics, options.tokenFilter()).stopWhen(stop), out, event);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public byte[] format(byte[] xml) {
+        try {
+            return formatBytes(ByteBuffer.wrap(xml)).toByteArray();
+        } catch (XmlLimitExceededException e) {
+            if (!options.compactOnOverflow()) {
+                throw e;
+            }
+            return compactFormatter().format(xml);
+        }
+    }
+
+    // Позиция буфера xml не меняется; результат в той же кодировке, что и вход
+    public ByteBuffer format(ByteBuffer xml) {
+        try {
+            return formatBytes(xml.duplicate()).toByteBuffer();
+        } catch (XmlLimitExceededException e) {
+            if (!options.compactOnOverflow()) {
+                throw e;
+            }
+            return compactFormatter().format(xml);
+        }
+    }
+
+    // Неблокирующее форматирование тела, которое приходит частями: каждая часть форматируется, как только
+    // пришла, и уходит подписчику отдельным буфером; следующая часть запрашивается у xml, только когда подписчик
+    // забрал предыдущий результат. Кодировка определяется так же, как у format(byte[]). Сигналы обрабатываются
+    // в потоках, которые их посылают. Форматтер, который не умеет продолжать документ с места (resumable вернул
+    // null: MinifyXmlFormatter, подклассы из других пакетов), копит части и форматирует документ целиком
+    // через format(ByteBuffer), когда источник закончил
+    public Flow.Publisher<ByteBuffer> format(Flow.Publisher<ByteBuffer> xml) {
+        return format(xml, Runnable::run);
+    }
+
+    // То же, но форматирование частей выполняет executor. Буферы xml читаются уже после возврата из onNext,
+    // поэтому источник не должен переиспользовать их
+    public Flow.Publisher<ByteBuffer> format(Flow.Publisher<ByteBuffer> xml, Executor executor) {
+        return new AsyncXmlFormatter(xml, this, executor);
     }
 
+    // Запасной компактный вид для compactOnOverflow: без отступов и с тем же режимом автозакрытия.
+    // Глубина на его размер не влияет, поэтому остаётся только ограничение размера
+    XmlFormatter compactFormatter() {
+        return new MinifyXmlFormatter(options.withMaxNesting(FormatOptions.UNLIMITED).withCompactOnOverflow(false),
+                listener);
+    }
+
+    // UTF-8 (и ASCII, Latin-1) форматируется прямо по байтам, прочитанным как Latin-1: многобайтовые
+    // последовательности копируются без декодирования и не проверяются. Другие кодировки из метки
+    // порядка байтов или объявления XML декодируются и кодируются обратно обычным путём
+    private Latin1Writer formatBytes(ByteBuffer input) {
+        Latin1Writer result = new Latin1Writer(input.remaining() + input.remaining() / 4);
+        try {
+            Charset charset = XmlEncoding.fromByteOrderMark(input);
+            if (charset != null) {
+                int markLength = XmlEncoding.byteOrderMarkLength(input, charset);
+                result.write(input.slice().limit(markLength));
+                input.position(input.position() + markLength);
+            }
+            if (charset == null || XmlEncoding.isAsciiTransparent(charset)) {
+                FormatEvent event = beginEvent();
+                XmlTokenCursor tokens = tokenizer.cursor(new Latin1Reader(input.duplicate()), startMetrics(event),
+                        options.tokenFilter());
+                XmlToken first = tokens.peek();
+                Charset declared = charset == null && first != null && first.type == XmlToken.TokenType.XML_DECLARATION
+                        ? XmlEncoding.declaredCharset(first.content) : null;
+                if (declared == null || XmlEncoding.isAsciiTransparent(declared)) {
+                    format(tokens, result, event);
+                    return result;
+                }
+                charset = declared;
+            }
+            String xml = charset.newDecoder().decode(input).toString();
+            result.write(charset.newEncoder().encode(CharBuffer.wrap(format(xml))));
+            return result;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static FormatEvent beginEvent() {
+        return FLIGHT_RECORDER_EVENTS ? FormatEvent.beginIfEnabled() : null;
+    }
+
+    // Без слушателя и без записи JFR метрики не создаются, и курсор ничего не измеряет
+    FormatMetrics startMetrics(FormatEvent event) {
+        if (listener == null && event == null) {
+            return null;
+        }
+        return new FormatMetrics(getClass().getSimpleName());
+    }
 
+    private void format(XmlTokenCursor tokens, Appendable target, FormatEvent event) throws IOException {
+        XmlOutput out = new XmlOutput(target, options, true);
+        FormatMetrics metrics = tokens.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            format(tokens, out);
+            out.finish();
+        } finally {
+            // Буферы возвращаются и после исключения (ограничение, ошибка ввода-вывода)
+            out.release();
+            tokens.release();
+        }
+        if (metrics == null) {
+            return;
+        }
+        metrics.finish(tokens.inputPosition(), out.position(), System.nanoTime() - start);
+        report(metrics, event);
+    }
+
+    void report(FormatMetrics metrics, FormatEvent event) {
+        if (event != null) {
+            event.commit(metrics);
+        }
+        if (listener != null) {
+            listener.formatted(metrics);
+        }
+    }
+
+    // Точка расширения для подклассов, в том числе из других пакетов: токены документа по одному (с просмотром
+    // вперёд) и приёмник результата. Все входы - строка, Reader, байты - приходят сюда одним путём.
+    // Вариант по умолчанию нужен подклассам, которые переопределяют только format(String): оставшиеся токены
+    // собираются обратно в строку (пробелы между ними сжимаются, как у MinifyXmlFormatter) и форматируются ею
+    protected void format(XmlTokenCursor tokens, XmlOutput out) throws IOException {
+        if (!overridesFormatString()) {
+            throw new UnsupportedOperationException(getClass().getName()
+                    + " must override format(XmlTokenCursor, XmlOutput) or format(String)");
+        }
+        StringBuilder xml = new StringBuilder();
+        XmlOutput source = new XmlOutput(xml, FormatOptions.DEFAULT, false);
+        try {
+            tokens.copyRemaining(source);
+            source.finish();
+        } finally {
+            source.release();
+        }
+        out.append(format(xml.toString()));
+    }
+
+    private boolean overridesFormatString() {
+        try {
+            return getClass().getMethod("format", String.class).getDeclaringClass() != XmlFormatter.class;
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError(e); // format(String) публичный и есть у каждого подкласса
+        }
+    }
+
+    // Состояние одного документа, который форматируется по частям, или null, если форматтер так не умеет
+    Resumable resumable() {
+        return resumable(false);
+    }
+
+    // trackTags: состояние следит за именами открытых тегов (Resumable.openTags), как нужно XmlPreview
+    Resumable resumable(boolean trackTags) {
+        return null;
+    }
+
+    interface Resumable {
+        // Форматирует все токены, которые курсор может отдать, и запоминает, на чём остановился
+        void resume(XmlTokenCursor tokens, XmlOutput out) throws IOException;
+
+        // Дописывает хвост документа после последней части
+        void finish(XmlTokenCursor tokens, XmlOutput out) throws IOException;
+
+        // Открытые сейчас теги от внешнего к внутреннему; только для состояния из resumable(true)
+        List<String> openTags();
+
+        // Независимая копия: с одного места документ можно продолжить несколько раз
+        Resumable copy();
+    }
+
+    public String escapeText(String text) {
+        return XmlOutput.escape(text);
+    }
+
+    // Отступ уровня level строкой, по тем же правилам, что XmlOutput.indent. Встроенные форматтеры пишут
+    // отступ прямо в XmlOutput; метод остаётся для подклассов, которые собирают строки сами
     protected String getIndent(int level) {
-        return " ".repeat(level * indentSpaces);
+        int length = Math.min(Math.max(level, 0), options.maxIndentDepth()) * (options.tabs() ? 1 : indentSpaces);
+        return (options.tabs() ? "\t" : " ").repeat(length);
     }
 
+    // Просмотр ограничен окном курсора: после MAX_LOOKAHEAD комментариев подряд текст считается блочным
+    protected boolean isNextNonEmptyTokenText(XmlTokenCursor tokens) {
+        for (int i = 0; i < XmlTokenCursor.MAX_LOOKAHEAD; i++) {
+            XmlToken nextToken = tokens.peek(i);
+            if (nextToken == null) {
+                return false;
+            }
+            if (nextToken.type == XmlToken.TokenType.TEXT) {
+                String text = nextToken.content.trim();
+                return !text.isEmpty(); // Возвращаем true только если текст не пустой
+            } else if (nextToken.type == XmlToken.TokenType.OPENING_TAG ||
+                    nextToken.type == XmlToken.TokenType.CLOSING_TAG ||
+                    nextToken.type == XmlToken.TokenType.SELF_CLOSING_TAG) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Вариант для подклассов, которые сами собирают токены в список (XmlTokenizer.tokenize)
     protected boolean isNextNonEmptyTokenText(List<XmlToken> tokens, int currentIndex) {
         for (int i = currentIndex + 1; i < tokens.size(); i++) {
             XmlToken nextToken = tokens.get(i);
             if (nextToken.type == XmlToken.TokenType.TEXT) {
-                String text = nextToken.content.trim();
-                return !text.isEmpty(); // Возвращаем true только если текст не пустой
+                return !nextToken.content.trim().isEmpty();
             } else if (nextToken.type == XmlToken.TokenType.OPENING_TAG ||
                     nextToken.type == XmlToken.TokenType.CLOSING_TAG ||
                     nextToken.type == XmlToken.TokenType.SELF_CLOSING_TAG) {
@@ -0,0 +1,418 @@
+package prettyprint;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+
+// Посимвольный лексер: один проход по входу без регулярных выражений и без возвратов.
+// Вход читается через скользящее окно, поэтому в памяти держится только текущий токен.
+// Reader, который возвращает 0 символов, означает, что следующая часть входа ещё не пришла (FeedReader):
+// токен, упёршийся в конец пришедшего, не выдаётся, и его разбор продолжится со следующей частью
+class XmlLexer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String string;
+    private final Reader reader;
+    private int stringPos;
+    private boolean eof;
+    private boolean waiting; // последний scan упёрся в конец пришедшей части входа
+
+    private char[] buf;
+    private long base;   // абсолютная позиция buf[0] во входе
+    private int limit;   // количество прочитанных символов в buf
+    private long pos;    // абсолютная позиция начала следующего токена
+    private long tokenStart; // границы токена, найденного последним вызовом scan
+    private long tokenEnd;
+
+    // copyTokens: ещё не скопированный кусок входа из подряд идущих токенов
+    private XmlOutput copyTarget;
+    private long runStart;
+    private long runEnd;
+
+    // Начало первого незавершённого комментария, CDATA или объявления: такие токены заканчиваются
+    // на первом '>', только пока дальше по документу нет настоящего окончания
+    private long firstFallback = Long.MAX_VALUE;
+
+    private final Terminator lt = new Terminator('<', (char) 0);
+    private final Terminator gt = new Terminator('>', (char) 0);
+    private final Terminator question = new Terminator('?', (char) 0);
+    private final Terminator commentEnd = new Terminator('>', '-');
+    private final Terminator cdataEnd = new Terminator('>', ']');
+
+    XmlLexer(String xml) {
+        this(xml, 0);
+    }
+
+    // Разбор с середины строки: позиции токенов остаются абсолютными
+    XmlLexer(String xml, int from) {
+        this.string = xml;
+        this.reader = null;
+        this.buf = Scratch.takeLexerBuffer(Math.max(16, Math.min(BUFFER_SIZE, xml.length() - from)));
+        this.stringPos = from;
+        this.base = from;
+        this.pos = from;
+    }
+
+    XmlLexer(Reader reader) {
+        this(reader, 0);
+    }
+
+    // offset - позиция во входе, с которой начинает читать reader
+    XmlLexer(Reader reader, long offset) {
+        this.string = null;
+        this.reader = reader;
+        this.buf = Scratch.takeLexerBuffer(BUFFER_SIZE);
+        this.base = offset;
+        this.pos = offset;
+    }
+
+    XmlToken nextToken() {
+        XmlToken.TokenType type = scan();
+        if (type == null) {
+            return null;
+        }
+        return new XmlToken(tokenText(), type, tokenStart, tokenEnd);
+    }
+
+    // Следующий токен без строки: тип или null, как у nextToken. Границы токена - tokenStart и tokenEnd,
+    // текст при необходимости - tokenText (поддерево, отброшенное фильтром; индекс элементов)
+    XmlToken.TokenType nextTokenType() {
+        return scan();
+    }
+
+    long tokenStart() {
+        return tokenStart;
+    }
+
+    long tokenEnd() {
+        return tokenEnd;
+    }
+
+    // Текст последнего найденного токена; годится до следующего вызова nextToken или nextTokenType
+    String tokenText() {
+        return new String(buf, (int) (tokenStart - base), (int) (tokenEnd - tokenStart));
+    }
+
+    // Находит следующий токен, не создавая строку. Возвращает тип токена или null в конце входа
+    private XmlToken.TokenType scan() {
+        waiting = false;
+        while (available(pos)) {
+            long start = pos;
+            long fallback = firstFallback;
+            boolean markup = charAt(pos) == '<';
+            XmlToken.TokenType type = markup ? readMarkup() : readText();
+            if (waiting) {
+                // Разметка разбирается заново с той же позиции; текст продолжится с места, до которого
+                // пропущены начальные пробелы (см. readText)
+                if (markup) {
+                    pos = start;
+                }
+                firstFallback = fallback;
+                return null;
+            }
+            if (type != null) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    // true, если nextToken вернул null потому, что следующая часть входа ещё не пришла
+    boolean isWaiting() {
+        return waiting;
+    }
+
+    // Дописывает в out все оставшиеся токены. Пробелы между разметкой отбрасываются, а рядом с текстом
+    // сжимаются в один пробел (см. needsSpace); previousType и previousEnd - последний уже записанный токен
+    // или null и -1. Токены, которые во входе шли вплотную, копируются одним куском, поэтому уже компактный
+    // вход проходит почти со скоростью копирования
+    void copyTokens(XmlOutput out, XmlToken.TokenType previousType, long previousEnd) throws IOException {
+        copyTarget = out;
+        // Пробелы за последним записанным токеном лексер уже пропустил, поэтому разрыв отсчитывается от его конца
+        runStart = previousType != null ? previousEnd : pos;
+        runEnd = runStart;
+        try {
+            XmlToken.TokenType type;
+            while ((type = scan()) != null) {
+                if (tokenStart != runEnd) {
+                    flushRun();
+                    if (needsSpace(previousType, previousEnd, type, tokenStart)) {
+                        out.append(" ");
+                    }
+                    runStart = tokenStart;
+                }
+                runEnd = tokenEnd;
+                previousType = type;
+                previousEnd = tokenEnd;
+            }
+            flushRun();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            copyTarget = null;
+        }
+    }
+
+    // Между токенами были пробелы, и хотя бы один из токенов - текст: в смешанном содержимом такие пробелы
+    // разделяют слова, и при сжатии от них остаётся один пробел. Текстовые токены обрезаны по краям, поэтому
+    // разрыв между позициями и есть эти пробелы. Если фильтр отбросил токены между ними, разрыв считается
+    // пробелом; у токенов без позиции (созданных фильтром) пробела нет
+    static boolean needsSpace(XmlToken.TokenType previousType, long previousEnd, XmlToken.TokenType type,
+                              long start) {
+        return previousType != null && previousEnd >= 0 && start > previousEnd
+                && (previousType == XmlToken.TokenType.TEXT || type == XmlToken.TokenType.TEXT);
+    }
+
+    private void flushRun() {
+        if (runEnd > runStart) {
+            try {
+                copyTarget.append(buf, (int) (runStart - base), (int) (runEnd - base));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        runStart = runEnd;
+    }
+
+    private XmlToken.TokenType readText() {
+        long start = pos;
+        long end = lt.find(start);
+        if (waiting) {
+            // Пробелы в начале текста в токен не входят, поэтому их можно пропустить, не дожидаясь конца текста
+            while (start < base + limit && charAt(start) <= ' ') {
+                start++;
+            }
+            pos = start;
+            return null;
+        }
+        if (end < 0) {
+            end = base + limit;
+        }
+        pos = end;
+
+        while (start < end && charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return null;
+        }
+        return token(start, end, XmlToken.TokenType.TEXT);
+    }
+
+    private XmlToken.TokenType readMarkup() {
+        long start = pos;
+
+        if (startsWith("<?xml", start)) {
+            long end = question.find(start + 5);
+            if (end >= 0 && available(end + 1) && charAt(end + 1) == '>') {
+                return markup(start, end + 2, XmlToken.TokenType.XML_DECLARATION);
+            }
+        } else if (startsWith("<![CDATA[", start)) {
+            long end = cdataEnd.find(start + 9);
+            if (end >= 0) {
+                return markup(start, end + 1, XmlToken.TokenType.CDATA);
+            }
+        } else if (startsWith("<!--", start)) {
+            long end = commentEnd.find(start + 4);
+            if (end >= 0) {
+                return markup(start, end + 1, XmlToken.TokenType.COMMENT);
+            }
+        }
+
+        // Обычный тег (или незавершённая конструкция выше) заканчивается на первом '>'
+        long end = gt.find(start + 1);
+        if (end < 0 || end == start + 1) {
+            // '<' без пары не образует токена и пропускается, как раньше делал Matcher.find
+            pos = start + 1;
+            return null;
+        }
+        XmlToken.TokenType type = getTagType(start, end + 1);
+        if (type != XmlToken.TokenType.OPENING_TAG && type != XmlToken.TokenType.CLOSING_TAG
+                && type != XmlToken.TokenType.SELF_CLOSING_TAG) {
+            firstFallback = Math.min(firstFallback, start);
+        }
+        return markup(start, end + 1, type);
+    }
+
+    // Возвращает буфер для следующих вызовов; после этого лексер использовать нельзя
+    void release() {
+        Scratch.giveLexerBuffer(buf);
+        buf = null;
+    }
+
+    // Абсолютная позиция, до которой вход разобран
+    long position() {
+        return pos;
+    }
+
+    long firstFallback() {
+        return firstFallback;
+    }
+
+    private XmlToken.TokenType markup(long start, long end, XmlToken.TokenType type) {
+        pos = end;
+        return token(start, end, type);
+    }
+
+    private XmlToken.TokenType token(long start, long end, XmlToken.TokenType type) {
+        tokenStart = start;
+        tokenEnd = end;
+        return type;
+    }
+
+    private XmlToken.TokenType getTagType(long start, long end) {
+        if (startsWith("<?xml", start)) {
+            return XmlToken.TokenType.XML_DECLARATION;
+        }
+        if (startsWith("<!--", start)) {
+            return XmlToken.TokenType.COMMENT;
+        }
+        if (startsWith("<![CDATA[", start)) {
+            return XmlToken.TokenType.CDATA;
+        }
+        if (charAt(start + 1) == '/') {
+            return XmlToken.TokenType.CLOSING_TAG;
+        }
+        if (charAt(end - 2) == '/') {
+            return XmlToken.TokenType.SELF_CLOSING_TAG;
+        }
+        return XmlToken.TokenType.OPENING_TAG;
+    }
+
+    private char charAt(long index) {
+        return buf[(int) (index - base)];
+    }
+
+    private boolean startsWith(String prefix, long from) {
+        if (!available(from + prefix.length() - 1)) {
+            return false;
+        }
+        int offset = (int) (from - base);
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf[offset + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long indexOf(char c, long from) {
+        long index = from;
+        while (available(index)) {
+            int i = (int) (index - base);
+            int end = limit;
+            for (; i < end; i++) {
+                if (buf[i] == c) {
+                    return base + i;
+                }
+            }
+            index = base + end;
+        }
+        return -1;
+    }
+
+    // Гарантирует, что символ с абсолютной позицией index находится в буфере
+    private boolean available(long index) {
+        while (index >= base + limit) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean fill() {
+        if (eof) {
+            return false;
+        }
+        // Всё до начала текущего токена уже не нужно: сдвигаем окно
+        if (copyTarget != null) {
+            flushRun();
+        }
+        int keepFrom = (int) (pos - base);
+        if (keepFrom > 0) {
+            System.arraycopy(buf, keepFrom, buf, 0, limit - keepFrom);
+            limit -= keepFrom;
+            base = pos;
+        }
+        if (limit == buf.length) {
+            char[] grown = new char[buf.length * 2];
+            System.arraycopy(buf, 0, grown, 0, limit);
+            buf = grown;
+        }
+
+        int read;
+        if (reader != null) {
+            try {
+                read = reader.read(buf, limit, buf.length - limit);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            read = Math.min(buf.length - limit, string.length() - stringPos);
+            string.getChars(stringPos, stringPos + read, buf, limit);
+            stringPos += read;
+            if (read == 0) {
+                read = -1;
+            }
+        }
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        if (read == 0) {
+            waiting = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    // Ищет символ (или '-->', ']]>', если задан удвоенный префикс) и запоминает результат,
+    // чтобы повторные поиски не сканировали хвост документа заново. Неудачный поиск по части входа
+    // с приходом следующей части продолжается с места, где остановился
+    private class Terminator {
+        private final char last;
+        private final char prefix;
+        private final int length;
+        private long searchedFrom = Long.MAX_VALUE;
+        private long searchedTo;
+        private long foundAt = -1;
+
+        Terminator(char last, char prefix) {
+            this.last = last;
+            this.prefix = prefix;
+            this.length = prefix == 0 ? 1 : 3;
+        }
+
+        // Возвращает позицию последнего символа первого вхождения, начинающегося не раньше from, или -1
+        long find(long from) {
+            if (from < searchedFrom || (foundAt >= 0 && foundAt - length + 1 < from)) {
+                searchedFrom = from;
+                foundAt = search(from);
+                searchedTo = base + limit;
+            } else if (foundAt < 0 && (searchedTo < base + limit || !eof)) {
+                foundAt = search(Math.max(from, searchedTo - length + 1));
+                searchedTo = base + limit;
+            }
+            return foundAt;
+        }
+
+        private long search(long from) {
+            if (prefix == 0) {
+                return indexOf(last, from);
+            }
+            long index = from + 2;
+            while ((index = indexOf(last, index)) >= 0) {
+                if (charAt(index - 1) == prefix && charAt(index - 2) == prefix) {
+                    return index;
+                }
+                index++;
+            }
+            return -1;
+        }
+    }
+}
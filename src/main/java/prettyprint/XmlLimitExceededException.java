@@ -0,0 +1,42 @@
+package prettyprint;
+
+// Документ вышел за ограничение из FormatOptions. Бросается до того, как результат займёт лишнюю память;
+// при потоковом выводе часть результата к этому моменту уже записана
+public class XmlLimitExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final Limit limit;
+    private final long value;
+    private final long inputPosition;
+
+    public XmlLimitExceededException(Limit limit, long value, long inputPosition) {
+        super(message(limit, value, inputPosition));
+        this.limit = limit;
+        this.value = value;
+        this.inputPosition = inputPosition;
+    }
+
+    public Limit limit() {
+        return limit;
+    }
+
+    // Значение нарушенного ограничения
+    public long value() {
+        return value;
+    }
+
+    // Позиция во входе, на которой ограничение нарушено, или -1, если она неизвестна
+    public long inputPosition() {
+        return inputPosition;
+    }
+
+    private static String message(Limit limit, long value, long inputPosition) {
+        String what = limit == Limit.NESTING ? "Nesting depth exceeds " + value : "Output exceeds " + value + " chars";
+        return inputPosition >= 0 ? what + " at input position " + inputPosition : what;
+    }
+
+    public enum Limit {
+        NESTING,
+        OUTPUT_SIZE
+    }
+}
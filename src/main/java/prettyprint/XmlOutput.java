@@ -0,0 +1,320 @@
+package prettyprint;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+// Общий приёмник отформатированного текста для всех форматтеров. Символы копятся в буфере
+// и уходят в Writer/StringBuilder пачками; отступы берутся из заранее заполненного массива пробелов,
+// экранирование делается за один проход. Пробелы в начале и в конце документа при trim
+// отбрасываются прямо при записи, поэтому результат не нужно копировать ради trim().
+// Ограничения FormatOptions на глубину отступа и размер результата проверяются здесь же, при записи.
+// Для подклассов XmlFormatter из других пакетов открыты только методы записи
+public final class XmlOutput {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final Appendable target;
+    private final int indentWidth;
+    private final char indentChar;
+    private final int maxIndentDepth;
+    private final long maxOutputChars;
+    private final boolean trim;
+    private char[] buffer = Scratch.takeOutputBuffer(BUFFER_SIZE);
+    private int count;
+    private char[] padding = new char[0];
+
+    private boolean started;
+    private int trailingWhitespace;
+    private boolean empty = true;
+    private char lastChar;
+    private long position;
+    private long newlines;
+
+    XmlOutput(Appendable target, int indentSpaces, boolean trim) {
+        this(target, FormatOptions.DEFAULT.withIndent(indentSpaces), trim);
+    }
+
+    XmlOutput(Appendable target, FormatOptions options, boolean trim) {
+        this.target = target;
+        this.indentWidth = options.tabs() ? 1 : options.indentSpaces();
+        this.indentChar = options.tabs() ? '\t' : ' ';
+        this.maxIndentDepth = options.maxIndentDepth();
+        this.maxOutputChars = options.maxOutputChars();
+        this.trim = trim;
+    }
+
+    // Вывод продолжает документ с середины (XmlPreview): пробелы в начале уже не начало документа
+    XmlOutput continued() {
+        started = true;
+        return this;
+    }
+
+    public XmlOutput append(String text) throws IOException {
+        write(text, 0, text.length());
+        return this;
+    }
+
+    // Для склейки уже отформатированных кусков (StringBuilder), без промежуточного toString()
+    public XmlOutput append(CharSequence text) throws IOException {
+        write(text, 0, text.length());
+        return this;
+    }
+
+    public XmlOutput append(char[] chars, int from, int to) throws IOException {
+        write(CharBuffer.wrap(chars, from, to - from), 0, to - from);
+        return this;
+    }
+
+    public XmlOutput newline() throws IOException {
+        empty = false;
+        lastChar = '\n';
+        if (trim && !started) {
+            return this;
+        }
+        grow(1);
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = '\n';
+        trailingWhitespace++;
+        newlines++;
+        return this;
+    }
+
+    // Отрицательный уровень (лишний закрывающий тег) печатается без отступа,
+    // уровень глубже maxIndentDepth - с отступом maxIndentDepth
+    public XmlOutput indent(int level) throws IOException {
+        int length = Math.min(Math.max(level, 0), maxIndentDepth) * indentWidth;
+        if (length == 0) {
+            return this;
+        }
+        empty = false;
+        lastChar = ' ';
+        if (trim && !started) {
+            return this;
+        }
+        grow(length);
+        if (padding.length < length) {
+            padding = new char[Math.max(length, padding.length * 2)];
+            Arrays.fill(padding, indentChar);
+        }
+        copyWhitespace(padding, length);
+        return this;
+    }
+
+    // Экранирует &, " и ' за один проход; текст без таких символов копируется как есть
+    public XmlOutput appendEscaped(String text) throws IOException {
+        int start = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            String entity = entity(text.charAt(i));
+            if (entity != null) {
+                write(text, start, i);
+                write(entity, 0, entity.length());
+                start = i + 1;
+            }
+        }
+        write(text, start, length);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    public char lastChar() {
+        return lastChar;
+    }
+
+    // Сколько символов записано, не считая отброшенных пробелов в начале (хвостовые учитываются до finish)
+    long position() {
+        return position;
+    }
+
+    // Сколько переводов строк добавил newline(); переводы строк внутри содержимого токенов не считаются
+    long newlines() {
+        return newlines;
+    }
+
+    // Отдаёт приёмнику всё записанное, кроме хвостовых пробелов при trim: результат по частям (AsyncXmlFormatter)
+    void flush() throws IOException {
+        int keep = trim ? trailingWhitespace : 0;
+        int flushable = count - keep;
+        if (flushable > 0) {
+            writeTarget(flushable);
+            System.arraycopy(buffer, flushable, buffer, 0, keep);
+            count = keep;
+        }
+    }
+
+    // Отдаёт приёмнику всё записанное вместе с хвостовыми пробелами: документ на этом не кончается,
+    // его продолжит другой приёмник (XmlPreview)
+    void flushAll() throws IOException {
+        writeTarget(count);
+        count = 0;
+        trailingWhitespace = 0;
+    }
+
+    // Сбрасывает буфер в приёмник; хвостовые пробелы при trim отбрасываются
+    void finish() throws IOException {
+        if (trim) {
+            count -= trailingWhitespace;
+            position -= trailingWhitespace;
+            trailingWhitespace = 0;
+        }
+        writeTarget(count);
+        count = 0;
+    }
+
+    // Возвращает буфер для следующих вызовов; вызывается после finish
+    void release() {
+        Scratch.giveOutputBuffer(buffer);
+        buffer = null;
+    }
+
+    static String escape(String text) {
+        int length = text.length();
+        int i = 0;
+        while (i < length && entity(text.charAt(i)) == null) {
+            i++;
+        }
+        if (i == length) {
+            return text;
+        }
+        StringBuilder result = new StringBuilder(length + 16).append(text, 0, i);
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+            String entity = entity(c);
+            if (entity != null) {
+                result.append(entity);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static String entity(char c) {
+        switch (c) {
+            case '&':
+                return "&amp;";
+            case '"':
+                return "&quot;";
+            case '\'':
+                return "&apos;";
+            default:
+                return null;
+        }
+    }
+
+    private void write(CharSequence text, int from, int to) throws IOException {
+        if (from >= to) {
+            return;
+        }
+        empty = false;
+        lastChar = text.charAt(to - 1);
+        if (trim) {
+            if (!started) {
+                while (from < to && text.charAt(from) <= ' ') {
+                    from++;
+                }
+                if (from == to) {
+                    return;
+                }
+                started = true;
+            }
+            grow(to - from);
+            int last = to;
+            while (last > from && text.charAt(last - 1) <= ' ') {
+                last--;
+            }
+            if (last > from) {
+                trailingWhitespace = 0;
+                copy(text, from, last, false);
+            }
+            copy(text, last, to, true);
+        } else {
+            grow(to - from);
+            copy(text, from, to, false);
+        }
+    }
+
+    // Проверка до копирования: лишнее не попадает даже в буфер
+    private void grow(int chars) {
+        position += chars;
+        if (position > maxOutputChars) {
+            throw new XmlLimitExceededException(XmlLimitExceededException.Limit.OUTPUT_SIZE, maxOutputChars, -1);
+        }
+    }
+
+    // Пробельные символы учитываются в trailingWhitespace сразу после копирования,
+    // чтобы flushBuffer не отправил их в приёмник раньше времени
+    private void copy(CharSequence text, int from, int to, boolean whitespace) throws IOException {
+        while (from < to) {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            int n = Math.min(to - from, buffer.length - count);
+            getChars(text, from, from + n, buffer, count);
+            count += n;
+            from += n;
+            if (whitespace) {
+                trailingWhitespace += n;
+            }
+        }
+    }
+
+    private static void getChars(CharSequence text, int from, int to, char[] dst, int at) {
+        if (text instanceof String) {
+            ((String) text).getChars(from, to, dst, at);
+        } else if (text instanceof StringBuilder) {
+            ((StringBuilder) text).getChars(from, to, dst, at);
+        } else if (text instanceof CharBuffer && ((CharBuffer) text).hasArray()) {
+            CharBuffer chars = (CharBuffer) text;
+            System.arraycopy(chars.array(), chars.arrayOffset() + chars.position() + from, dst, at, to - from);
+        } else {
+            for (int i = from; i < to; i++) {
+                dst[at++] = text.charAt(i);
+            }
+        }
+    }
+
+    private void copyWhitespace(char[] chars, int length) throws IOException {
+        int from = 0;
+        while (from < length) {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            int n = Math.min(length - from, buffer.length - count);
+            System.arraycopy(chars, from, buffer, count, n);
+            count += n;
+            from += n;
+            trailingWhitespace += n;
+        }
+    }
+
+    // Хвостовые пробелы остаются в буфере, пока не станет ясно, что за ними есть текст
+    private void flushBuffer() throws IOException {
+        if (count == (trim ? trailingWhitespace : 0)) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            return;
+        }
+        flush();
+    }
+
+    private void writeTarget(int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (target instanceof Writer) {
+            ((Writer) target).write(buffer, 0, length);
+        } else if (target instanceof StringBuilder) {
+            ((StringBuilder) target).append(buffer, 0, length);
+        } else if (target instanceof ChunkedText) {
+            ((ChunkedText) target).append(buffer, 0, length);
+        } else {
+            target.append(CharBuffer.wrap(buffer, 0, length));
+        }
+    }
+}
@@ -1,10 +1,37 @@
 package prettyprint;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.zip.GZIPOutputStream;
 
 public class XmlPrettyPrinter {
+    // Порог, при котором formatFileToFile никогда не переключается на чтение через отображение файла
+    public static final long NIO_DISABLED = Long.MAX_VALUE;
+
+    private static final int CACHED_INDENTS = 9;
+    private static final XmlFormatter[] SIMPLE_FORMATTERS = new XmlFormatter[CACHED_INDENTS];
+    private static final XmlFormatter[] REPAIR_FORMATTERS = new XmlFormatter[CACHED_INDENTS];
+    private static final XmlFormatter MINIFIER = new MinifyXmlFormatter(false);
+    private static final XmlFormatter REPAIRING_MINIFIER = new MinifyXmlFormatter(true);
 
     public static String formatString(String xml) {
         return formatString(xml, false, 2);
@@ -15,13 +42,140 @@ public class XmlPrettyPrinter {
     }
 
     public static String formatString(String xml, boolean autoCloseTags, int indentSpaces) {
-        if (autoCloseTags) {
-            RepairXmlFormatter formatter = new RepairXmlFormatter(indentSpaces);
-            return formatter.format(xml);
-        } else {
-            SimpleXmlFormatter formatter = new SimpleXmlFormatter(indentSpaces);
-            return formatter.format(xml);
-        }
+        return formatter(autoCloseTags, indentSpaces).format(xml);
+    }
+
+    // Отступ табуляцией, ограничения глубины и размера результата - см. FormatOptions
+    public static String formatString(String xml, FormatOptions options) {
+        return formatter(options).format(xml);
+    }
+
+    // Параллельный режим поддерживается только без автозакрытия тегов
+    public static String formatStringParallel(String xml, int parallelism) {
+        return formatStringParallel(xml, 2, parallelism);
+    }
+
+    public static String formatStringParallel(String xml, int indentSpaces, int parallelism) {
+        return new ParallelXmlFormatter(indentSpaces, parallelism).format(xml);
+    }
+
+    public static void format(Reader in, Writer out) throws IOException {
+        format(in, out, false, 2);
+    }
+
+    public static void format(Reader in, Writer out, boolean autoCloseTags) throws IOException {
+        format(in, out, autoCloseTags, 2);
+    }
+
+    public static void format(Reader in, Writer out, boolean autoCloseTags, int indentSpaces) throws IOException {
+        formatter(autoCloseTags, indentSpaces).format(in, out);
+        out.flush();
+    }
+
+    // При нарушении ограничения бросает XmlLimitExceededException, уже записанная часть остаётся в out
+    public static void format(Reader in, Writer out, FormatOptions options) throws IOException {
+        formatter(options).format(in, out);
+        out.flush();
+    }
+
+    public static void format(InputStream in, OutputStream out) throws IOException {
+        format(in, out, false, 2);
+    }
+
+    public static void format(InputStream in, OutputStream out, boolean autoCloseTags) throws IOException {
+        format(in, out, autoCloseTags, 2);
+    }
+
+    // Потоки не закрываются: ими владеет вызывающий код. Вход в gzip распаковывается на лету
+    public static void format(InputStream in, OutputStream out, boolean autoCloseTags, int indentSpaces) throws IOException {
+        format(in, out, FormatOptions.DEFAULT.withAutoCloseTags(autoCloseTags).withIndent(indentSpaces));
+    }
+
+    public static void format(InputStream in, OutputStream out, FormatOptions options) throws IOException {
+        Reader reader = new InputStreamReader(Gzip.decompressIfGzip(in), StandardCharsets.UTF_8.newDecoder());
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8.newEncoder()));
+        format(reader, writer, options);
+    }
+
+    // Байты в байты без промежуточной строки: UTF-8 форматируется прямо по байтам,
+    // кодировка из метки порядка байтов или объявления XML сохраняется в результате
+    public static byte[] formatBytes(byte[] xml) {
+        return formatBytes(xml, false, 2);
+    }
+
+    public static byte[] formatBytes(byte[] xml, boolean autoCloseTags, int indentSpaces) {
+        return formatter(autoCloseTags, indentSpaces).format(xml);
+    }
+
+    public static ByteBuffer formatBytes(ByteBuffer xml, boolean autoCloseTags, int indentSpaces) {
+        return formatter(autoCloseTags, indentSpaces).format(xml);
+    }
+
+    // Неблокирующий вариант formatBytes для тела, которое приходит частями: результат публикуется
+    // по частям с учётом спроса подписчика, см. XmlFormatter.format(Flow.Publisher, Executor)
+    public static Flow.Publisher<ByteBuffer> format(Flow.Publisher<ByteBuffer> xml, FormatOptions options) {
+        return formatter(options).format(xml);
+    }
+
+    public static Flow.Publisher<ByteBuffer> format(Flow.Publisher<ByteBuffer> xml, FormatOptions options, Executor executor) {
+        return formatter(options).format(xml, executor);
+    }
+
+    // Весь результат одним массивом: части форматируются в executor по мере прихода, ни один поток не ждёт тело
+    public static CompletableFuture<byte[]> formatAsync(Flow.Publisher<ByteBuffer> xml, FormatOptions options, Executor executor) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        format(xml, options, executor).subscribe(new Flow.Subscriber<ByteBuffer>() {
+            private final Latin1Writer bytes = new Latin1Writer(8 * 1024);
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer chunk) {
+                bytes.write(chunk);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                result.completeExceptionally(error);
+            }
+
+            @Override
+            public void onComplete() {
+                result.complete(bytes.toByteArray());
+            }
+        });
+        return result;
+    }
+
+    // Компактный вид для передачи по сети: без отступов и незначащих пробелов
+    public static String minifyString(String xml) {
+        return minifyString(xml, false);
+    }
+
+    public static String minifyString(String xml, boolean autoCloseTags) {
+        return minifier(autoCloseTags).format(xml);
+    }
+
+    public static void minify(Reader in, Writer out, boolean autoCloseTags) throws IOException {
+        minifier(autoCloseTags).format(in, out);
+        out.flush();
+    }
+
+    public static byte[] minifyBytes(byte[] xml, boolean autoCloseTags) {
+        return minifier(autoCloseTags).format(xml);
+    }
+
+    public static void minifyFile(String inputFilePath, String outputFilePath) throws IOException {
+        minifyFile(inputFilePath, outputFilePath, false);
+    }
+
+    // Как formatFileToFile: вход в gzip распаковывается на лету, имя на ".gz" сжимает результат
+    public static void minifyFile(String inputFilePath, String outputFilePath, boolean autoCloseTags) throws IOException {
+        Path outputPath = Path.of(outputFilePath);
+        formatFileToFile(Path.of(inputFilePath), outputPath, minifier(autoCloseTags), isGzipName(outputPath));
     }
 
     public static String formatFile(String filePath) throws IOException {
@@ -33,29 +187,383 @@ public class XmlPrettyPrinter {
     }
 
     public static String formatFile(String filePath, boolean autoCloseTags, int indentSpaces) throws IOException {
-        String xmlContent = Files.readString(Path.of(filePath));
-        return formatString(xmlContent, autoCloseTags, indentSpaces);
+        StringBuilder result = new StringBuilder();
+        try (Reader reader = openReader(Path.of(filePath))) {
+            formatter(autoCloseTags, indentSpaces).format(reader, result);
+        }
+        return result.toString();
+    }
+
+    public static String formatFile(String filePath, FormatOptions options) throws IOException {
+        return formatter(options).format(readString(Path.of(filePath)));
+    }
+
+    public static ChunkedText formatFileChunked(String filePath) throws IOException {
+        return formatFileChunked(filePath, FormatOptions.DEFAULT);
+    }
+
+    // Как formatFile, но результат в кусках: файл читается потоком, а результат может быть длиннее String
+    public static ChunkedText formatFileChunked(String filePath, FormatOptions options) throws IOException {
+        Path path = Path.of(filePath);
+        XmlFormatter formatter = formatter(options);
+        try {
+            return formatChunked(path, formatter);
+        } catch (XmlLimitExceededException e) {
+            if (!options.compactOnOverflow()) {
+                throw e;
+            }
+            return formatChunked(path, formatter.compactFormatter());
+        }
+    }
+
+    private static ChunkedText formatChunked(Path path, XmlFormatter formatter) throws IOException {
+        ChunkedText result = new ChunkedText();
+        try (Reader reader = openReader(path)) {
+            formatter.format(reader, result);
+        }
+        return result;
+    }
+
+    // Первые maxLines строк отформатированного файла без разбора остального; см. XmlPreview
+    public static XmlPreview preview(String filePath, int maxLines) throws IOException {
+        return preview(filePath, null, maxLines, FormatOptions.DEFAULT);
+    }
+
+    public static XmlPreview preview(String filePath, int maxLines, FormatOptions options) throws IOException {
+        return preview(filePath, null, maxLines, options);
+    }
+
+    // Следующая страница с места from (XmlPreview.next()) с теми же настройками, что у предыдущей
+    public static XmlPreview preview(String filePath, XmlPreview.Continuation from, int maxLines) throws IOException {
+        return preview(filePath, from, maxLines, FormatOptions.DEFAULT);
+    }
+
+    public static XmlPreview preview(String filePath, XmlPreview.Continuation from, int maxLines,
+                                     FormatOptions options) throws IOException {
+        return XmlPreview.read(formatter(options), Path.of(filePath), from, maxLines);
+    }
+
+    // Индекс элементов глубины depth (0 - корень) для formatElement; см. XmlElementIndex.
+    // Возвращает количество элементов
+    public static long indexElements(String filePath, String indexPath, int depth) throws IOException {
+        return XmlElementIndex.build(Path.of(filePath), Path.of(indexPath), depth);
+    }
+
+    // Элемент n из индекса indexPath с тем же отступом, что в форматировании всего файла;
+    // остальной файл не читается
+    public static String formatElement(String filePath, String indexPath, long n) throws IOException {
+        return formatElement(filePath, indexPath, n, FormatOptions.DEFAULT);
+    }
+
+    public static String formatElement(String filePath, String indexPath, long n, FormatOptions options)
+            throws IOException {
+        try (XmlElementIndex index = XmlElementIndex.open(Path.of(indexPath))) {
+            return index.format(Path.of(filePath), n, options);
+        }
+    }
+
+    public static boolean isFormatted(String filePath) throws IOException {
+        return checkFile(filePath, FormatOptions.DEFAULT).isFormatted();
+    }
+
+    public static boolean isFormatted(String filePath, boolean autoCloseTags) throws IOException {
+        return checkFile(filePath, FormatOptions.DEFAULT.withAutoCloseTags(autoCloseTags)).isFormatted();
+    }
+
+    public static FormatCheck checkFile(String filePath) throws IOException {
+        return checkFile(filePath, FormatOptions.DEFAULT);
+    }
+
+    public static FormatCheck checkFile(String filePath, boolean autoCloseTags) throws IOException {
+        return checkFile(filePath, FormatOptions.DEFAULT.withAutoCloseTags(autoCloseTags));
+    }
+
+    // То же сравнение, что formatFile(filePath, options).equals(содержимое файла), но результат не строится:
+    // файл читается дважды, потоком для форматтера и потоком для сравнения, и проверка кончается
+    // на первом отличии
+    public static FormatCheck checkFile(String filePath, FormatOptions options) throws IOException {
+        Path path = Path.of(filePath);
+        XmlFormatter formatter = formatter(options);
+        try {
+            return checkFile(path, formatter);
+        } catch (XmlLimitExceededException e) {
+            if (!options.compactOnOverflow()) {
+                throw e;
+            }
+            return checkFile(path, formatter.compactFormatter());
+        }
+    }
+
+    private static FormatCheck checkFile(Path path, XmlFormatter formatter) throws IOException {
+        try (Reader reader = openReader(path); Reader actual = openReader(path)) {
+            ComparingWriter comparing = new ComparingWriter(actual);
+            formatter.format(reader, comparing, comparing::differs);
+            return comparing.finish();
+        }
+    }
+
+    public static String formatFileParallel(String filePath, int parallelism) throws IOException {
+        return formatFileParallel(filePath, 2, parallelism);
+    }
+
+    public static String formatFileParallel(String filePath, int indentSpaces, int parallelism) throws IOException {
+        return formatStringParallel(readString(Path.of(filePath)), indentSpaces, parallelism);
     }
 
+    // Для файлов больше 2 ГБ: вход отображается в память и режется на куски прямо в байтах.
+    // Вход считается UTF-8, но не проверяется на корректность, байты вне разметки копируются как есть.
+    // Поток gzip на куски не режется, такие файлы форматируются последовательно
+    public static void formatFileToFileParallel(String inputFilePath, String outputFilePath, int indentSpaces,
+                                                int parallelism) throws IOException {
+        Path inputPath = Path.of(inputFilePath);
+        Path outputPath = Path.of(outputFilePath);
+        if (Gzip.isGzip(inputPath) || isGzipName(outputPath)) {
+            formatFileToFile(inputFilePath, outputFilePath, false, indentSpaces);
+            return;
+        }
+        boolean inPlace = Files.exists(outputPath) && Files.isSameFile(inputPath, outputPath);
+        Path target = inPlace ? createSiblingTempFile(inputPath) : outputPath;
+        try {
+            try (FileChannel input = FileChannel.open(inputPath, StandardOpenOption.READ);
+                 FileChannel output = FileChannel.open(target, StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ChannelWriter writer = new ChannelWriter(output, StandardCharsets.ISO_8859_1);
+                new ParallelXmlFormatter(indentSpaces, parallelism).formatLatin1(input, writer);
+                writer.close();
+                if (inPlace) {
+                    output.force(true);
+                }
+            }
+            if (inPlace) {
+                replaceAtomically(target, inputPath);
+            }
+        } finally {
+            if (inPlace) {
+                Files.deleteIfExists(target);
+            }
+        }
+    }
+
+    // Сжатый gzip файл остаётся сжатым
     public static void formatFileInPlace(String filePath, boolean autoCloseTags, int indentSpaces) throws IOException {
-        String xmlContent = Files.readString(Path.of(filePath));
-        String formattedXml = formatString(xmlContent, autoCloseTags, indentSpaces);
-        Files.writeString(Path.of(filePath), formattedXml);
+        Path path = Path.of(filePath);
+        Path tempFile = createSiblingTempFile(path);
+        try {
+            boolean gzipOutput = Gzip.isGzip(path);
+            try (Reader reader = openReader(path)) {
+                writeFormatted(reader, tempFile, formatter(autoCloseTags, indentSpaces), gzipOutput, true);
+            }
+            replaceAtomically(tempFile, path);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    public static BatchResult formatTree(String rootPath, String glob) throws IOException {
+        return formatTree(rootPath, glob, false, 2, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static BatchResult formatTree(String rootPath, String glob, boolean autoCloseTags, int indentSpaces) throws IOException {
+        return formatTree(rootPath, glob, autoCloseTags, indentSpaces, Runtime.getRuntime().availableProcessors());
+    }
+
+    // Форматирует на месте все файлы под rootPath, чей относительный путь подходит под glob.
+    // Ошибки по отдельным файлам собираются в результат, неизменившиеся файлы не переписываются
+    public static BatchResult formatTree(String rootPath, String glob, boolean autoCloseTags, int indentSpaces,
+                                         int threads) throws IOException {
+        return new TreeFormatter(autoCloseTags, indentSpaces, threads).format(Path.of(rootPath), glob);
     }
 
     public static void formatFileToFile(String inputFilePath, String outputFilePath) throws IOException {
         formatFileToFile(inputFilePath, outputFilePath, false, 2);
     }
 
+    public static void formatFileToFile(String inputFilePath, String outputFilePath, FormatOptions options) throws IOException {
+        formatFileToFile(inputFilePath, outputFilePath, options, isGzipName(Path.of(outputFilePath)));
+    }
+
+    // Вход читается потоком. Если результат выходит за ограничение, а в options включён compactOnOverflow,
+    // файл перечитывается и записывается заново компактно; иначе исключение, и файл результата остаётся неполным
+    public static void formatFileToFile(String inputFilePath, String outputFilePath, FormatOptions options,
+                                        boolean gzipOutput) throws IOException {
+        formatFileToFile(Path.of(inputFilePath), Path.of(outputFilePath), formatter(options), gzipOutput);
+    }
+
+    private static void formatFileToFile(Path inputPath, Path outputPath, XmlFormatter formatter, boolean gzipOutput)
+            throws IOException {
+        boolean inPlace = Files.exists(outputPath) && Files.isSameFile(inputPath, outputPath);
+        Path target = inPlace ? createSiblingTempFile(inputPath) : outputPath;
+        try {
+            try (Reader reader = openReader(inputPath)) {
+                writeFormatted(reader, target, formatter, gzipOutput, inPlace);
+            } catch (XmlLimitExceededException e) {
+                if (!formatter.options.compactOnOverflow()) {
+                    throw e;
+                }
+                try (Reader reader = openReader(inputPath)) {
+                    writeFormatted(reader, target, formatter.compactFormatter(), gzipOutput, inPlace);
+                }
+            }
+            if (inPlace) {
+                replaceAtomically(target, inputPath);
+            }
+        } finally {
+            if (inPlace) {
+                Files.deleteIfExists(target);
+            }
+        }
+    }
+
     public static void formatFileToFile(String inputFilePath, String outputFilePath, boolean autoCloseTags) throws IOException {
         formatFileToFile(inputFilePath, outputFilePath, autoCloseTags, 2);
     }
 
     public static void formatFileToFile(String inputFilePath, String outputFilePath, boolean autoCloseTags, int indentSpaces) throws IOException {
-        String xmlContent = Files.readString(Path.of(inputFilePath));
-        String formattedXml = formatString(xmlContent, autoCloseTags, indentSpaces);
-        Files.writeString(Path.of(outputFilePath), formattedXml);
+        formatFileToFile(inputFilePath, outputFilePath, autoCloseTags, indentSpaces, NIO_DISABLED);
+    }
+
+    // Файлы не меньше nioThresholdBytes читаются через MappedByteBuffer и пишутся через прямой буфер в FileChannel.
+    // Результат сжимается gzip, если имя выходного файла оканчивается на ".gz"
+    public static void formatFileToFile(String inputFilePath, String outputFilePath, boolean autoCloseTags, int indentSpaces,
+                                        long nioThresholdBytes) throws IOException {
+        formatFileToFile(inputFilePath, outputFilePath, autoCloseTags, indentSpaces, nioThresholdBytes,
+                isGzipName(Path.of(outputFilePath)));
+    }
+
+    // Вход в gzip распознаётся по заголовку и распаковывается на лету, gzipOutput сжимает результат.
+    // Ни вход, ни результат целиком в памяти не держатся
+    public static void formatFileToFile(String inputFilePath, String outputFilePath, boolean autoCloseTags, int indentSpaces,
+                                        long nioThresholdBytes, boolean gzipOutput) throws IOException {
+        Path inputPath = Path.of(inputFilePath);
+        Path outputPath = Path.of(outputFilePath);
+        // Запись в тот же файл, из которого идёт чтение, обрезала бы вход до его разбора
+        if (Files.exists(outputPath) && Files.isSameFile(inputPath, outputPath)) {
+            formatFileInPlace(inputFilePath, autoCloseTags, indentSpaces);
+            return;
+        }
+        if (nioThresholdBytes != NIO_DISABLED && Files.size(inputPath) >= nioThresholdBytes && !Gzip.isGzip(inputPath)) {
+            formatFileToFileMapped(inputPath, outputPath, autoCloseTags, indentSpaces, gzipOutput);
+            return;
+        }
+        try (Reader reader = openReader(inputPath)) {
+            writeFormatted(reader, outputPath, formatter(autoCloseTags, indentSpaces), gzipOutput, false);
+        }
+    }
+
+    private static void formatFileToFileMapped(Path inputPath, Path outputPath, boolean autoCloseTags, int indentSpaces,
+                                               boolean gzipOutput) throws IOException {
+        try (FileChannel input = FileChannel.open(inputPath, StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(outputPath, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            GZIPOutputStream gzip = gzipOutput ? Gzip.compress(Channels.newOutputStream(output)) : null;
+            ChannelWriter writer = new ChannelWriter(gzip != null ? Channels.newChannel(gzip) : output);
+            formatter(autoCloseTags, indentSpaces).format(new MappedFileReader(input), writer);
+            writer.close();
+            if (gzip != null) {
+                gzip.finish();
+            }
+        }
+    }
+
+    // Форматтеры неизменяемы и потокобезопасны: для обычных отступов каждый создаётся один раз и
+    // переиспользуется всеми вызовами. Гонка при заполнении кэша безвредна - победит любой из равных экземпляров
+    public static XmlFormatter formatter(boolean autoCloseTags, int indentSpaces) {
+        if (indentSpaces < 0 || indentSpaces >= CACHED_INDENTS) {
+            return createFormatter(autoCloseTags, indentSpaces);
+        }
+        XmlFormatter[] cache = autoCloseTags ? REPAIR_FORMATTERS : SIMPLE_FORMATTERS;
+        XmlFormatter formatter = cache[indentSpaces];
+        if (formatter == null) {
+            formatter = createFormatter(autoCloseTags, indentSpaces);
+            cache[indentSpaces] = formatter;
+        }
+        return formatter;
+    }
+
+    static XmlFormatter minifier(boolean autoCloseTags) {
+        return autoCloseTags ? REPAIRING_MINIFIER : MINIFIER;
     }
 
+    // Для настроек без табуляции и ограничений - общий экземпляр из кэша, иначе новый
+    public static XmlFormatter formatter(FormatOptions options) {
+        if (options.isPlain()) {
+            return formatter(options.autoCloseTags(), options.indentSpaces());
+        }
+        return options.autoCloseTags() ? new RepairXmlFormatter(options) : new SimpleXmlFormatter(options);
+    }
+
+    private static XmlFormatter createFormatter(boolean autoCloseTags, int indentSpaces) {
+        if (autoCloseTags) {
+            return new RepairXmlFormatter(indentSpaces);
+        } else {
+            return new SimpleXmlFormatter(indentSpaces);
+        }
+    }
+
+    static Reader openReader(Path path) throws IOException {
+        // Декодер в режиме REPORT, как у Files.readString: битый UTF-8 приводит к ошибке, а не к подмене символов
+        return new InputStreamReader(Gzip.decompressIfGzip(Files.newInputStream(path)), StandardCharsets.UTF_8.newDecoder());
+    }
+
+    static String readString(Path path) throws IOException {
+        if (!Gzip.isGzip(path)) {
+            return Files.readString(path);
+        }
+        StringWriter xml = new StringWriter();
+        try (Reader reader = openReader(path)) {
+            reader.transferTo(xml);
+        }
+        return xml.toString();
+    }
+
+    static boolean isGzipName(Path path) {
+        return path.getFileName().toString().endsWith(".gz");
+    }
+
+    // durable: target - временный файл, который заменит исходный через replaceAtomically, и его содержимое
+    // должно дойти до диска до переименования. Обычному файлу результата fsync не нужен
+    private static void writeFormatted(Reader reader, Path target, XmlFormatter formatter, boolean gzipOutput,
+                                       boolean durable) throws IOException {
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (gzipOutput) {
+                GZIPOutputStream gzip = Gzip.compress(Channels.newOutputStream(channel));
+                Writer writer = new OutputStreamWriter(gzip, StandardCharsets.UTF_8.newEncoder());
+                formatter.format(reader, writer);
+                writer.flush();
+                gzip.finish();
+            } else {
+                Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1));
+                formatter.format(reader, writer);
+                writer.flush();
+            }
+            if (durable) {
+                channel.force(true);
+            }
+        }
+    }
+
+    static Path createSiblingTempFile(Path path) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Path tempFile = Files.createTempFile(directory, "." + path.getFileName(), ".tmp");
+        try {
+            Files.setPosixFilePermissions(tempFile, Files.getPosixFilePermissions(path));
+        } catch (UnsupportedOperationException e) {
+            // Файловая система без POSIX-прав: оставляем права по умолчанию
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+        return tempFile;
+    }
+
+    // Переименование атомарно, поэтому при сбое на диске остаётся либо старый, либо новый файл целиком
+    static void replaceAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,135 @@
+package prettyprint;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+// Страница отформатированного файла (XmlPrettyPrinter.preview). Разбор и форматирование идут лениво
+// и останавливаются в начале первой строки после maxLines переводов строк, поэтому страница стоит столько,
+// сколько в ней строк, а не сколько весит файл. next() - продолжение: позиция в файле, стек открытых тегов
+// и остальное состояние форматтера; следующая страница начинается с него без повторного разбора начала.
+// Страницы подряд дают тот же текст, что и форматирование всего файла.
+// Файл читается по байтам как UTF-8, как в formatFileToFileParallel: позиция продолжения - смещение в байтах,
+// и с него можно начать отображение файла. Сжатый файл так не прочитать, для него страниц нет
+public final class XmlPreview {
+    private final List<String> lines;
+    private final Continuation next;
+
+    private XmlPreview(List<String> lines, Continuation next) {
+        this.lines = lines;
+        this.next = next;
+    }
+
+    // Строки без переводов строк. Их больше maxLines, если последний токен страницы сам многострочный
+    // (комментарий или текст), и меньше в конце документа
+    public List<String> lines() {
+        return lines;
+    }
+
+    // Продолжение для следующей страницы или null, если документ кончился
+    public Continuation next() {
+        return next;
+    }
+
+    // Место, с которого продолжается форматирование, вместе с состоянием форматтера на этом месте.
+    // Годится только для того же файла и тех же FormatOptions; одно продолжение можно использовать повторно
+    public static final class Continuation {
+        private final long offset;
+        private final List<String> openTags;
+        private final XmlFormatter.Resumable state;
+
+        private Continuation(long offset, XmlFormatter.Resumable state) {
+            this.offset = offset;
+            this.openTags = List.copyOf(state.openTags());
+            this.state = state;
+        }
+
+        // Смещение в байтах начала первого ещё не отформатированного токена
+        public long offset() {
+            return offset;
+        }
+
+        // Имена тегов, открытых к этому месту, от внешнего к внутреннему
+        public List<String> openTags() {
+            return openTags;
+        }
+
+        @Override
+        public String toString() {
+            return "offset " + offset + ", open tags " + openTags;
+        }
+    }
+
+    // from == null: страница с начала файла
+    static XmlPreview read(XmlFormatter formatter, Path path, Continuation from, int maxLines) throws IOException {
+        if (maxLines <= 0) {
+            throw new IllegalArgumentException("maxLines must be > 0: " + maxLines);
+        }
+        Gzip.requireUncompressed(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long offset = from != null ? from.offset : XmlEncoding.utf8ByteOrderMarkLength(channel);
+            if (offset > channel.size()) {
+                throw new IllegalArgumentException("Offset " + offset + " is past the end of " + path);
+            }
+            XmlFormatter.Resumable state = from != null ? from.state.copy() : formatter.resumable(true);
+            StringBuilder page = new StringBuilder();
+            // Пробелы обрезаются только в начале и в конце всего документа
+            XmlOutput out = new XmlOutput(page, formatter.options, true);
+            if (from != null) {
+                out.continued();
+            }
+            MappedFileReader reader = new MappedFileReader(channel, offset, StandardCharsets.ISO_8859_1);
+            PageCursor tokens = new PageCursor(new XmlLexer(reader, offset), formatter.options.tokenFilter(), out,
+                    maxLines);
+            Continuation next = null;
+            state.resume(tokens, out);
+            XmlToken rest = tokens.peek();
+            if (rest == null) {
+                state.finish(tokens, out);
+                out.finish();
+            } else if (rest.start < 0) {
+                throw new IllegalStateException("Token filter replaced a token without keeping its position: "
+                        + rest.content);
+            } else {
+                next = new Continuation(rest.start, state);
+                out.flushAll(); // пробелы в конце строки не хвост документа
+            }
+            out.release();
+            tokens.release();
+            return new XmlPreview(lines(page), next);
+        }
+    }
+
+    // Символы страницы - байты UTF-8, прочитанные как Latin-1
+    private static List<String> lines(StringBuilder page) {
+        String text = new String(page.toString().getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+        if (text.isEmpty()) {
+            return List.of();
+        }
+        if (text.endsWith("\n")) {
+            text = text.substring(0, text.length() - 1);
+        }
+        return List.of(text.split("\n", -1));
+    }
+
+    // Отдаёт токены, пока страница не набрала maxLines строк. Останавливается только в начале строки:
+    // строку, которую форматтер ещё продолжает (текст в строку), следующая страница не разорвёт
+    private static final class PageCursor extends XmlTokenCursor {
+        private final XmlOutput out;
+        private final int maxLines;
+
+        PageCursor(XmlLexer lexer, XmlTokenFilter filter, XmlOutput out, int maxLines) {
+            super(lexer, null, filter, false);
+            this.out = out;
+            this.maxLines = maxLines;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (out.newlines() < maxLines || out.lastChar() != '\n') && super.hasNext();
+        }
+    }
+}
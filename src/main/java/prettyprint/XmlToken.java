@@ -3,12 +3,21 @@ package prettyprint;
 public class XmlToken {
     public String content;
     public TokenType type;
+    // Позиции токена во входе: [start, end); -1, если токен создан не лексером
+    public long start = -1;
+    public long end = -1;
 
     public XmlToken(String content, TokenType type) {
         this.content = content;
         this.type = type;
     }
 
+    public XmlToken(String content, TokenType type, long start, long end) {
+        this(content, type);
+        this.start = start;
+        this.end = end;
+    }
+
     public boolean isEmpty() {
         return content.trim().isEmpty();
     }
@@ -0,0 +1,218 @@
+package prettyprint;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BooleanSupplier;
+
+// Потоковый курсор по токенам: лексер вызывается только по требованию, в памяти держится лишь окно просмотра
+public class XmlTokenCursor implements Iterator<XmlToken> {
+    public static final int MAX_LOOKAHEAD = 64;
+    // Частичный вход держит в окне токен и MAX_LOOKAHEAD токенов за ним (столько видит форматтер,
+    // пока обрабатывает токен) и дочитывает окно пачками, а не по токену
+    private static final int WINDOW = 2 * MAX_LOOKAHEAD;
+
+    private final XmlLexer lexer;
+    final FormatMetrics metrics;
+    private final XmlTokenFilter filter;
+    private final boolean partial;
+    private final XmlToken[] window = new XmlToken[WINDOW];
+    private int head;
+    private int count;
+    private boolean exhausted;
+    private int skipDepth; // глубина поддерева, которое фильтр велел пропустить
+    private BooleanSupplier stop;
+
+    XmlTokenCursor(XmlLexer lexer) {
+        this(lexer, null);
+    }
+
+    // metrics != null: время разбора и количество токенов учитываются по мере чтения
+    XmlTokenCursor(XmlLexer lexer, FormatMetrics metrics) {
+        this(lexer, metrics, null, false);
+    }
+
+    // filter != null: токены проходят через фильтр сразу после лексера (см. XmlTokenFilter).
+    // partial: вход приходит частями (FeedReader). Токен отдаётся, только когда разобраны и все токены,
+    // которые форматтер может просмотреть за ним; иначе hasNext возвращает false до следующей части
+    XmlTokenCursor(XmlLexer lexer, FormatMetrics metrics, XmlTokenFilter filter, boolean partial) {
+        this.lexer = lexer;
+        this.metrics = metrics;
+        this.filter = filter;
+        this.partial = partial;
+    }
+
+    // Вход для форматтера кончается, как только stop вернёт true: приёмнику результат больше не нужен
+    // (ComparingWriter нашёл отличие)
+    XmlTokenCursor stopWhen(BooleanSupplier stop) {
+        this.stop = stop;
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (stop != null && stop.getAsBoolean()) {
+            return false;
+        }
+        if (partial && !settle()) {
+            return false;
+        }
+        return peek(0) != null;
+    }
+
+    @Override
+    public XmlToken next() {
+        XmlToken token = peek(0);
+        if (token == null) {
+            throw new NoSuchElementException();
+        }
+        window[head] = null;
+        head = (head + 1) % WINDOW;
+        count--;
+        return token;
+    }
+
+    public XmlToken peek() {
+        return peek(0);
+    }
+
+    // Возвращает токен через ahead позиций от текущей или null, если вход закончился
+    public XmlToken peek(int ahead) {
+        if (ahead < 0 || ahead >= MAX_LOOKAHEAD) {
+            throw new IllegalArgumentException("Lookahead must be in [0, " + MAX_LOOKAHEAD + "): " + ahead);
+        }
+        if (count <= ahead && metrics != null) {
+            fillMeasured();
+        }
+        while (count <= ahead) {
+            if (exhausted || !lex()) {
+                return null;
+            }
+        }
+        return window[(head + ahead) % WINDOW];
+    }
+
+    private boolean settle() {
+        if (count <= MAX_LOOKAHEAD && !exhausted) {
+            long start = metrics != null ? System.nanoTime() : 0;
+            while (count < WINDOW && !exhausted && lex()) {
+            }
+            if (metrics != null) {
+                metrics.lexTime(System.nanoTime() - start);
+            }
+        }
+        return count > MAX_LOOKAHEAD || exhausted;
+    }
+
+    private boolean lex() {
+        while (true) {
+            if (skipDepth > 0 && !skip()) {
+                return false;
+            }
+            XmlToken token = lexer.nextToken();
+            if (token == null && lexer.isWaiting()) {
+                return false; // следующая часть входа ещё не пришла
+            }
+            if (metrics != null) {
+                metrics.lexed(token != null ? token.type : null);
+            }
+            if (token == null) {
+                exhausted = true;
+                return false;
+            }
+            if (filter != null && (token = filter(token)) == null) {
+                continue;
+            }
+            window[(head + count) % WINDOW] = token;
+            count++;
+            return true;
+        }
+    }
+
+    private XmlToken filter(XmlToken token) {
+        XmlToken result = filter.filter(token);
+        if (result instanceof SkippedSubtree) {
+            if (token.type == XmlToken.TokenType.OPENING_TAG) {
+                skipDepth = 1;
+            }
+            return ((SkippedSubtree) result).replacement;
+        }
+        return result;
+    }
+
+    // Пропускает поддерево до парного закрывающего тега, не создавая токенов. false - следующая часть
+    // входа ещё не пришла; конец входа оставляет lex, чтобы он отметил его как обычно
+    private boolean skip() {
+        while (skipDepth > 0) {
+            XmlToken.TokenType type = lexer.nextTokenType();
+            if (type == null) {
+                if (lexer.isWaiting()) {
+                    return false;
+                }
+                skipDepth = 0;
+                break;
+            }
+            if (metrics != null) {
+                metrics.lexed(type);
+            }
+            if (type == XmlToken.TokenType.OPENING_TAG) {
+                skipDepth++;
+            } else if (type == XmlToken.TokenType.CLOSING_TAG) {
+                skipDepth--;
+            }
+        }
+        return true;
+    }
+
+    // С метриками окно заполняется целиком за один замер времени: System.nanoTime на каждый токен
+    // стоил бы дороже самого разбора
+    private void fillMeasured() {
+        long start = System.nanoTime();
+        while (count < MAX_LOOKAHEAD && !exhausted) {
+            lex();
+        }
+        metrics.lexTime(System.nanoTime() - start);
+    }
+
+    // Дописывает в out все оставшиеся токены в компактном виде (MinifyXmlFormatter): пробелы между токенами
+    // по правилам XmlLexer.needsSpace. Без метрик и фильтра токены не создаются вовсе: символы копируются
+    // из окна лексера (см. XmlLexer.copyTokens)
+    void copyRemaining(XmlOutput out) throws IOException {
+        XmlToken.TokenType previousType = null;
+        long previousEnd = -1;
+        while (count > 0 || metrics != null || filter != null) {
+            if (!hasNext()) {
+                return;
+            }
+            XmlToken token = next();
+            if (XmlLexer.needsSpace(previousType, previousEnd, token.type, token.start)) {
+                out.append(" ");
+            }
+            out.append(token.content);
+            previousType = token.type;
+            previousEnd = token.end;
+        }
+        if (!exhausted) {
+            lexer.copyTokens(out, previousType, previousEnd);
+            exhausted = true;
+        }
+    }
+
+    void release() {
+        lexer.release();
+    }
+
+    long inputPosition() {
+        return lexer.position();
+    }
+
+    // Результат фильтра, который пропускает поддерево (XmlTokenFilter.skipSubtree)
+    static final class SkippedSubtree extends XmlToken {
+        final XmlToken replacement;
+
+        SkippedSubtree(XmlToken replacement) {
+            super("", XmlToken.TokenType.OPENING_TAG);
+            this.replacement = replacement;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package prettyprint;
+
+// Фильтр токенов, которые форматтер получает от курсора (FormatOptions.withTokenFilter). Работает в том же
+// проходе, что и форматирование: форматтер видит уже отфильтрованный поток, в том числе когда смотрит вперёд.
+// filter возвращает:
+//  - сам token - пропустить как есть;
+//  - другой токен - заменить;
+//  - null - отбросить;
+//  - SKIP_SUBTREE или skipSubtree(replacement) - для открывающего тега отбросить его вместе со всем
+//    содержимым до парного закрывающего тега. Содержимое не буферизуется и даже не превращается в токены:
+//    лексер только находит границы и считает глубину. Пару ищем по глубине, как SimpleXmlFormatter, без
+//    сверки имён; у незакрытого тега пропускается всё до конца документа. Для других токенов это то же,
+//    что замена на replacement.
+// Один фильтр обслуживает все документы форматтера, в том числе из разных потоков, поэтому состояния
+// между вызовами у него быть не должно
+public interface XmlTokenFilter {
+    XmlToken SKIP_SUBTREE = skipSubtree(null);
+
+    XmlToken filter(XmlToken token);
+
+    // Цепочка: next получает то, что этот фильтр пропустил или чем заменил токен
+    default XmlTokenFilter andThen(XmlTokenFilter next) {
+        return token -> {
+            XmlToken result = filter(token);
+            return result == null || result instanceof XmlTokenCursor.SkippedSubtree ? result : next.filter(result);
+        };
+    }
+
+    // replacement выдаётся вместо пропущенного поддерева; null - ничего вместо него
+    static XmlToken skipSubtree(XmlToken replacement) {
+        return new XmlTokenCursor.SkippedSubtree(replacement);
+    }
+
+    static XmlTokenFilter dropComments() {
+        return token -> token.type == XmlToken.TokenType.COMMENT ? null : token;
+    }
+
+    static XmlTokenFilter dropCdataLongerThan(int maxChars) {
+        return token -> token.type == XmlToken.TokenType.CDATA && token.content.length() > maxChars ? null : token;
+    }
+
+    // Элементы с этими именами пропадают целиком
+    static XmlTokenFilter skipElements(String... names) {
+        String[] skipped = names.clone();
+        return token -> {
+            if (token.type == XmlToken.TokenType.OPENING_TAG && hasName(token, skipped)) {
+                return SKIP_SUBTREE;
+            }
+            return token.type == XmlToken.TokenType.SELF_CLOSING_TAG && hasName(token, skipped) ? null : token;
+        };
+    }
+
+    // Содержимое элементов с этими именами пропадает, а сами они остаются пустыми тегами с прежними атрибутами
+    static XmlTokenFilter redactElements(String... names) {
+        String[] redacted = names.clone();
+        return token -> {
+            if (token.type != XmlToken.TokenType.OPENING_TAG || !hasName(token, redacted)) {
+                return token;
+            }
+            String tag = token.content.endsWith(">") ? token.content.substring(0, token.content.length() - 1)
+                    : token.content; // тег, оборванный концом входа
+            return skipSubtree(new XmlToken(tag + "/>",
+                    XmlToken.TokenType.SELF_CLOSING_TAG, token.start, token.end));
+        };
+    }
+
+    // Имя тега сравнивается прямо в содержимом токена, без промежуточной строки
+    private static boolean hasName(XmlToken tag, String[] names) {
+        String content = tag.content;
+        int end = 1;
+        while (end < content.length() && !isNameEnd(content.charAt(end))) {
+            end++;
+        }
+        for (String name : names) {
+            if (name.length() == end - 1 && content.regionMatches(1, name, 0, name.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNameEnd(char c) {
+        return c <= ' ' || c == '/' || c == '>';
+    }
+}
@@ -0,0 +1,142 @@
+package prettyprint;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import static org.junit.jupiter.api.Assertions.*;
+
+// Регрессии производительности на враждебных входах: каждый вход строится для размеров n, 2n, 4n и 8n
+// и прогоняется через все форматтеры. При росте входа в 8 раз линейный разбор замедляется примерно в 8 раз,
+// квадратичный - в 64; порог 32 оставляет запас на шум общей машины, а при превышении замер повторяется
+// до ATTEMPTS раз (квадратичный случай не уложится в порог ни с какой попытки). Лимит времени на каждый
+// тест щедрый: на обычной машине тесты занимают секунды, а зависание на квадратичном случае заняло бы минуты
+@Timeout(value = 10, unit = TimeUnit.MINUTES)
+public class ScalingTest {
+    private static final int BASE_SIZE = 128 * 1024;
+    private static final int DOUBLINGS = 3;
+    private static final long MAX_GROWTH = 32;
+    private static final int RUNS = 5;
+    private static final int ATTEMPTS = 3;
+
+    // Тестирует серии '<' без '>': каждый '<' ищет '>' до конца входа
+    @Test
+    public void testUnterminatedAngleBrackets() {
+        assertAllLinear("'<' run", size -> "<root>" + "<".repeat(size) + "</root>", false);
+        assertAllLinear("'< a' run", size -> repeat("< a ", size), false);
+    }
+
+    // Тестирует незавершённые комментарии, CDATA и объявления: каждое ищет своё окончание до конца входа
+    @Test
+    public void testUnterminatedSections() {
+        assertAllLinear("unterminated comments", size -> "<root>" + repeat("<!-- a ", size), false);
+        assertAllLinear("unterminated CDATA", size -> "<root>" + repeat("<![CDATA[ a ", size), false);
+        assertAllLinear("unterminated declarations", size -> "<root>" + repeat("<?xml a ", size), false);
+        assertAllLinear("unterminated mix", size -> "<root>" + repeat("<!-- <![CDATA[ <?xml <a ", size), false);
+    }
+
+    // Тестирует тысячи комментариев между открывающим тегом и текстом: просмотр вперёд ограничен окном курсора
+    @Test
+    public void testCommentsBeforeText() {
+        String comments = "<!-- c -->".repeat(1000);
+        assertAllLinear("comments before text", size -> repeat("<a>" + comments + "text</a>", size), false);
+        assertAllLinear("one open tag, comments", size -> "<a>" + repeat("<!-- c -->", size) + "text</a>", false);
+    }
+
+    // Тестирует глубокие несовпадения тегов в режиме восстановления: закрывающие теги без пары,
+    // закрытие сразу многих тегов и незакрытые теги до конца документа
+    @Test
+    public void testDeepRepairMismatches() {
+        assertAllLinear("unmatched closing tags", size -> "<root>" + repeat("</a>", size) + "</root>", true);
+        assertAllLinear("close all at once", size -> {
+            String open = repeat("<a>", size / 2);
+            return "<b>" + open + "</b>" + "</a>".repeat(open.length() / 3);
+        }, true);
+        assertAllLinear("never closed", size -> repeat("<a><b>text", size), true);
+        assertAllLinear("alternating mismatch", size -> repeat("<a><b></a></b>", size), true);
+    }
+
+    // Тестирует отдельно глубокую вложенность с выравниванием отступа: без него результат квадратичен
+    // по самой своей природе (строки × глубина), см. FormatOptions.withMaxIndentDepth
+    @Test
+    public void testDeepNestingWithFlattenedIndent() {
+        assertAllLinear("deep nesting", size -> {
+            String open = repeat("<a>", size / 2);
+            return open + "text" + "</a>".repeat(open.length() / 3);
+        }, true);
+    }
+
+    // deep: вход с большой вложенностью, его проходят только форматтеры с FormatOptions
+    private static void assertAllLinear(String input, IntFunction<String> generator, boolean deep) {
+        FormatOptions flat = FormatOptions.DEFAULT.withMaxIndentDepth(32);
+        Map<String, Function<String, ?>> formatters = new LinkedHashMap<>();
+        formatters.put("simple", new SimpleXmlFormatter(flat)::format);
+        formatters.put("repair", new RepairXmlFormatter(flat)::format);
+        formatters.put("minify", new MinifyXmlFormatter(false)::format);
+        formatters.put("minify repair", new MinifyXmlFormatter(true)::format);
+        XmlFormatter repair = new RepairXmlFormatter(flat);
+        formatters.put("repair bytes", xml -> repair.format(xml.getBytes(StandardCharsets.UTF_8)));
+        formatters.put("repair stream", xml -> stream(repair, xml));
+        if (!deep) {
+            formatters.put("parallel", new ParallelXmlFormatter(2, 2)::format);
+            formatters.put("incremental", new IncrementalXmlFormatter(2)::format);
+            formatters.put("legacy", new SimpleXMLPrettyPrinter()::format);
+        }
+
+        String[] documents = new String[DOUBLINGS + 1];
+        for (int i = 0; i < documents.length; i++) {
+            documents[i] = generator.apply(BASE_SIZE << i);
+        }
+        for (Map.Entry<String, Function<String, ?>> formatter : formatters.entrySet()) {
+            assertLinear(input + ", " + formatter.getKey(), documents, formatter.getValue());
+        }
+    }
+
+    private static void assertLinear(String name, String[] documents, Function<String, ?> format) {
+        format.apply(documents[documents.length - 1]); // прогрев JIT на самом большом входе
+        for (int i = 0; i < 3; i++) {
+            format.apply(documents[0]);
+        }
+        // Размеры чередуются внутри каждого прогона, чтобы дозревающий JIT и сборки мусора
+        // влияли на все размеры одинаково; от каждого размера берётся лучшее время за все попытки
+        long[] times = new long[documents.length];
+        Arrays.fill(times, Long.MAX_VALUE);
+        long growth = Long.MAX_VALUE;
+        for (int attempt = 0; attempt < ATTEMPTS && growth >= MAX_GROWTH; attempt++) {
+            for (int run = 0; run < RUNS; run++) {
+                for (int i = 0; i < documents.length; i++) {
+                    long start = System.nanoTime();
+                    format.apply(documents[i]);
+                    times[i] = Math.min(times[i], System.nanoTime() - start);
+                }
+            }
+            growth = times[times.length - 1] / Math.max(times[0], 1);
+        }
+        assertTrue(growth < MAX_GROWTH, name + ": input grew " + (1 << DOUBLINGS) + "x, time " + growth
+                + "x, ns per size " + Arrays.toString(times));
+    }
+
+    private static String stream(XmlFormatter formatter, String xml) {
+        StringWriter out = new StringWriter();
+        try {
+            formatter.format(new StringReader(xml), out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    // Повторяет фрагмент, пока не наберётся не меньше size символов
+    private static String repeat(String unit, int size) {
+        return unit.repeat((size + unit.length() - 1) / unit.length());
+    }
+}
@@ -1,9 +1,40 @@
 package prettyprint;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import com.sun.management.ThreadMXBean;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import static org.junit.jupiter.api.Assertions.*;
 
 public class XmlPrettyPrinterTest {
@@ -200,4 +231,1157 @@ public class XmlPrettyPrinterTest {
             assertTrue(result.contains(indent + "<level" + i + ">"));
         }
     }
-}
\ No newline at end of file
+
+    // Тестирует, что текст в конце документа без закрывающего тега не приводит к ошибке
+    @Test
+    public void testTrailingTextWithoutClosingTag() {
+        String result = XmlPrettyPrinter.formatString("<root><item>text");
+        assertEquals("<root>\n  <item>text", result);
+    }
+
+    // Тестирует потоковое форматирование Reader -> Writer и InputStream -> OutputStream в обоих режимах
+    @Test
+    public void testStreamingFormatMatchesStringFormat() throws IOException {
+        String xml = "<?xml version=\"1.0\"?><root><a>x</a><b><c>тест</c></b><d>";
+
+        for (boolean autoClose : new boolean[] {false, true}) {
+            String expected = XmlPrettyPrinter.formatString(xml, autoClose, 2);
+
+            StringWriter writer = new StringWriter();
+            XmlPrettyPrinter.format(new StringReader(xml), writer, autoClose, 2);
+            assertEquals(expected, writer.toString());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            XmlPrettyPrinter.format(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), out, autoClose, 2);
+            assertEquals(expected, out.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    // Тестирует форматирование файла на месте и в тот же файл через formatFileToFile
+    @Test
+    public void testFileInPlaceFormatting() throws IOException {
+        Path tempFile = Files.createTempFile("test", ".xml");
+        Files.writeString(tempFile, "<root><item>test</item></root>");
+
+        try {
+            XmlPrettyPrinter.formatFileInPlace(tempFile.toString(), false, 2);
+            assertEquals("<root>\n  <item>test</item>\n</root>", Files.readString(tempFile));
+
+            XmlPrettyPrinter.formatFileToFile(tempFile.toString(), tempFile.toString(), false, 4);
+            assertEquals("<root>\n    <item>test</item>\n</root>", Files.readString(tempFile));
+
+            try (Stream<Path> siblings = Files.list(tempFile.getParent())) {
+                assertTrue(siblings.noneMatch(p -> p.getFileName().toString().startsWith("." + tempFile.getFileName())),
+                        "Temporary file should be removed");
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    // Тестирует, что чтение через отображение файла в память даёт тот же результат, что и потоковое
+    @Test
+    public void testMappedFileFormattingMatchesStreaming() throws IOException {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?><root>");
+        for (int i = 0; i < 2000; i++) {
+            xml.append("<item id=\"").append(i).append("\"><name>Имя ").append(i).append(" \uD83D\uDE00</name></item>");
+        }
+        xml.append("</root>");
+
+        Path input = Files.createTempFile("test", ".xml");
+        Path streamed = Files.createTempFile("streamed", ".xml");
+        Path mapped = Files.createTempFile("mapped", ".xml");
+        Files.writeString(input, xml);
+
+        try {
+            XmlPrettyPrinter.formatFileToFile(input.toString(), streamed.toString(), true, 2);
+            XmlPrettyPrinter.formatFileToFile(input.toString(), mapped.toString(), true, 2, 0);
+            assertEquals(Files.readString(streamed), Files.readString(mapped));
+            assertEquals(XmlPrettyPrinter.formatString(xml.toString(), true, 2), Files.readString(mapped));
+        } finally {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(streamed);
+            Files.deleteIfExists(mapped);
+        }
+    }
+
+    // Тестирует линейность старого SimpleXMLPrettyPrinter по выделенной памяти: при росте входа в 8 раз она растёт
+    // примерно в 8 раз, а копирование остатка документа на каждом теге дало бы рост в 64 раза. Время проверяется
+    // с щедрым порогом по лучшему из нескольких чередующихся прогонов
+    @Test
+    public void testLegacyPrinterScalesLinearly() {
+        SimpleXMLPrettyPrinter printer = new SimpleXMLPrettyPrinter();
+        String small = legacyDocument(256 * 1024);
+        String large = legacyDocument(8 * 256 * 1024);
+        for (int i = 0; i < 5; i++) {
+            printer.format(small); // прогрев JIT
+        }
+
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long smallBytes = Long.MAX_VALUE;
+        long largeBytes = Long.MAX_VALUE;
+        long smallTime = Long.MAX_VALUE;
+        long largeTime = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            printer.format(small);
+            smallTime = Math.min(smallTime, System.nanoTime() - start);
+            smallBytes = Math.min(smallBytes, threads.getThreadAllocatedBytes(thread) - bytes);
+
+            bytes = threads.getThreadAllocatedBytes(thread);
+            start = System.nanoTime();
+            printer.format(large);
+            largeTime = Math.min(largeTime, System.nanoTime() - start);
+            largeBytes = Math.min(largeBytes, threads.getThreadAllocatedBytes(thread) - bytes);
+        }
+
+        assertTrue(largeBytes < smallBytes * 16, "Allocation grew from " + smallBytes + " to " + largeBytes + " bytes");
+        assertTrue(largeTime < smallTime * 32, "Time grew from " + smallTime + " to " + largeTime + " ns");
+    }
+
+    private static String legacyDocument(int size) {
+        StringBuilder xml = new StringBuilder(size + 64).append("<?xml version=\"1.0\"?>\n<catalog>\n");
+        for (int i = 0; xml.length() < size; i++) {
+            xml.append("  <book id=\"").append(i).append("\">\n    <title>Title ").append(i)
+                    .append("</title>\n    <!-- note -->\n    <empty/>\n  </book>\n");
+        }
+        return xml.append("</catalog>\n").toString();
+    }
+
+    // Тестирует однопроходное экранирование: текст без спецсимволов возвращается без копирования
+    @Test
+    public void testEscapeTextSinglePass() {
+        XmlFormatter formatter = new SimpleXmlFormatter();
+        String plain = "plain text";
+
+        assertSame(plain, formatter.escapeText(plain));
+        assertEquals("a &amp;amp; &quot;b&quot; &apos;c&apos;", formatter.escapeText("a &amp; \"b\" 'c'"));
+    }
+
+    // Тестирует отступы на глубине, превышающей размер начального буфера пробелов
+    @Test
+    public void testDeepIndentationFromCachedBuffer() {
+        StringBuilder xml = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            xml.append("<l>");
+        }
+        xml.append("x");
+        for (int i = 0; i < 300; i++) {
+            xml.append("</l>");
+        }
+
+        String result = XmlPrettyPrinter.formatString(xml.toString(), false, 3);
+        assertTrue(result.contains("\n" + " ".repeat(299 * 3) + "<l>x</l>\n"));
+        assertTrue(result.endsWith("\n</l>"));
+    }
+
+    // Тестирует авто-закрытие тегов с атрибутами и префиксами пространств имён
+    @Test
+    public void testAutoCloseWithAttributesAndNamespaces() {
+        String invalidXml = "<ns:root xmlns:ns=\"urn:x\"><item id=\"1\"><ns:leaf>a</ns:root>";
+        String expected = "<ns:root xmlns:ns=\"urn:x\">\n  <item id=\"1\">\n    <ns:leaf>a</ns:leaf>\n  </item>\n</ns:root>";
+
+        assertEquals(expected, XmlPrettyPrinter.formatString(invalidXml, true));
+    }
+
+    // Тестирует, что множество лишних закрывающих тегов при глубокой вложенности не замедляет восстановление
+    @Test
+    public void testAutoCloseManyStrayClosingTagsInDeepDocument() {
+        StringBuilder xml = new StringBuilder();
+        int depth = 20_000;
+        for (int i = 0; i < depth; i++) {
+            xml.append("<n").append(i).append(">");
+        }
+        for (int i = 0; i < depth; i++) {
+            xml.append("</stray").append(i).append(">");
+        }
+
+        String result = assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> XmlPrettyPrinter.formatString(xml.toString(), true, 0));
+        assertFalse(result.contains("stray"));
+        assertTrue(result.endsWith("</n0>"));
+    }
+
+    // Тестирует, что параллельное форматирование по кускам совпадает с последовательным, в том числе
+    // когда граница куска попадает внутрь комментария или CDATA
+    @Test
+    public void testParallelFormattingMatchesSimpleFormatter() {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?><root>");
+        for (int i = 0; i < 300; i++) {
+            xml.append("<item id=\"").append(i).append("\"><name>a & 'b'</name>")
+                    .append("<!-- <x> comment ").append(i).append(" -->")
+                    .append("<![CDATA[ <y> ]]><empty/>text <b>bold</b></item>");
+            if (i % 50 == 0) {
+                xml.append("</stray>");
+            }
+        }
+        xml.append("</root>");
+        String expected = new SimpleXmlFormatter(4).format(xml.toString());
+
+        for (int chunkSize : new int[]{1, 7, 64, 1000}) {
+            assertEquals(expected, new ParallelXmlFormatter(4, 3, chunkSize).format(xml.toString()));
+        }
+        assertEquals(expected, XmlPrettyPrinter.formatStringParallel(xml.toString(), 4, 2));
+    }
+
+    // Файл для параллельного форматирования: многобайтовые символы по всей длине
+    private static Path multibyteFile(Path dir) throws IOException {
+        StringBuilder xml = new StringBuilder("<root>");
+        for (int i = 0; i < 500; i++) {
+            xml.append("<item><name>Имя ").append(i).append(" \uD83D\uDE00</name><!-- ж --></item>");
+        }
+        return Files.writeString(dir.resolve("test.xml"), xml.append("</root>"));
+    }
+
+    // Тестирует параллельное форматирование файла: куски режутся по байтам, многобайтовые символы не портятся
+    @Test
+    public void testParallelFileFormattingMatchesSequential(@TempDir Path dir) throws IOException {
+        Path input = multibyteFile(dir);
+        Path output = dir.resolve("parallel.xml");
+        String expected = XmlPrettyPrinter.formatString(Files.readString(input));
+        XmlPrettyPrinter.formatFileToFileParallel(input.toString(), output.toString(), 2, 2);
+        assertEquals(expected, Files.readString(output));
+        assertEquals(expected, XmlPrettyPrinter.formatFileParallel(input.toString(), 2));
+    }
+
+    // Тестирует параллельное форматирование канала в Latin-1: байты UTF-8 проходят без изменений
+    @Test
+    public void testParallelLatin1ChannelKeepsBytes(@TempDir Path dir) throws IOException {
+        Path input = multibyteFile(dir);
+        try (FileChannel channel = FileChannel.open(input)) {
+            StringBuilder latin1 = new StringBuilder();
+            new ParallelXmlFormatter(2, 2, 5).formatLatin1(channel, latin1);
+            String result = new String(latin1.toString().getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+            assertEquals(XmlPrettyPrinter.formatString(Files.readString(input)), result);
+        }
+    }
+
+    // Тестирует пакетное форматирование каталога: неизменившиеся файлы не переписываются,
+    // ошибка в одном файле не прерывает обработку остальных
+    @Test
+    public void testFormatTreeCollectsErrorsAndSkipsUnchangedFiles() throws IOException {
+        Path root = Files.createTempDirectory("tree");
+        Path nested = Files.createDirectories(root.resolve("a/b"));
+        Path unformatted = root.resolve("one.xml");
+        Path formatted = nested.resolve("two.xml");
+        Path broken = nested.resolve("broken.xml");
+        Path ignored = root.resolve("notes.txt");
+        Files.writeString(unformatted, "<root><child>text</child></root>");
+        Files.writeString(formatted, "<root>\n  <child>text</child>\n</root>");
+        Files.write(broken, new byte[]{'<', 'a', '>', (byte) 0xC3, '<', '/', 'a', '>'});
+        Files.writeString(ignored, "<root><child>text</child></root>");
+        FileTime untouched = FileTime.fromMillis(0);
+        Files.setLastModifiedTime(formatted, untouched);
+
+        try {
+            BatchResult result = XmlPrettyPrinter.formatTree(root.toString(), "**.xml", false, 2, 2);
+
+            assertEquals(3, result.files);
+            assertEquals(1, result.changedFiles);
+            assertEquals(1, result.errors.size());
+            assertTrue(result.errors.containsKey(broken));
+            assertEquals("<root>\n  <child>text</child>\n</root>", Files.readString(unformatted));
+            assertEquals(untouched, Files.getLastModifiedTime(formatted));
+            assertEquals("<root><child>text</child></root>", Files.readString(ignored));
+            assertEquals(Files.size(unformatted), result.bytesWritten);
+        } finally {
+            for (Path path : new Path[]{unformatted, formatted, broken, ignored, nested, nested.getParent(), root}) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // Тестирует инкрементальное форматирование: после правок внутри элемента, правок, ломающих
+    // структуру, и правок в последнем элементе результат совпадает с полным форматированием
+    @Test
+    public void testIncrementalUpdateMatchesFullFormat() {
+        String xml = "<root><a><b>one</b><c/></a><p>text<i>x</i>tail</p><last><d>z</d></last></root>";
+        IncrementalXmlFormatter formatter = new IncrementalXmlFormatter(2);
+        assertEquals(XmlPrettyPrinter.formatString(xml), formatter.format(xml));
+
+        String[][] edits = {
+                {"one", "two & more"},
+                {"<c/>", "<c/><new>n</new>"},
+                {"x</i>", "y</i>"},
+                {"<d>z</d>", "<d>z</d><open>"},
+                {"<open>", ""},
+                {"z</d>", "z</d><!-- note -->"},
+        };
+        for (String[] edit : edits) {
+            int start = xml.indexOf(edit[0]);
+            String next = xml.substring(0, start) + edit[1] + xml.substring(start + edit[0].length());
+            CharSequence result = formatter.update(next, start, start + edit[0].length(), start + edit[1].length());
+            assertEquals(XmlPrettyPrinter.formatString(next), result.toString(), "after replacing " + edit[0]);
+            xml = next;
+        }
+    }
+
+    // Тестирует много правок подряд в разных местах документа: сдвиги позиций у соседей и предков копятся
+    // правильно, а вид на результат отдаёт те же символы, что и полное форматирование
+    @Test
+    public void testIncrementalManyEditsMatchFullFormat() {
+        StringBuilder document = new StringBuilder("<root>");
+        for (int i = 0; i < 40; i++) {
+            document.append("<item n=\"").append(i).append("\"><name>w").append(i).append("</name><list>");
+            for (int j = 0; j < 5; j++) {
+                document.append("<v>w").append(j).append("</v>");
+            }
+            document.append("</list></item>");
+        }
+        String xml = document.append("</root>").toString();
+        IncrementalXmlFormatter formatter = new IncrementalXmlFormatter(2);
+        formatter.format(xml);
+
+        Random random = new Random(1);
+        for (int n = 0; n < 300; n++) {
+            // Правка текста внутри случайного <v> или <name>: слово меняет длину
+            int tag = xml.indexOf(random.nextBoolean() ? "<v>" : "<name>", random.nextInt(xml.length() - 100));
+            if (tag < 0) {
+                continue;
+            }
+            int start = xml.indexOf('>', tag) + 1;
+            int end = xml.indexOf('<', start);
+            String word = "w".repeat(1 + random.nextInt(6)) + n;
+            String next = xml.substring(0, start) + word + xml.substring(end);
+            CharSequence result = formatter.update(next, start, end, start + word.length());
+            String expected = XmlPrettyPrinter.formatString(next);
+            assertEquals(expected, result.toString(), "after edit " + n);
+            int at = random.nextInt(expected.length());
+            assertEquals(expected.charAt(at), result.charAt(at));
+            assertEquals(expected.substring(at / 2, at), result.subSequence(at / 2, at).toString());
+            xml = next;
+        }
+    }
+
+    // Тестирует стоимость правки: на большом документе она зависит от размера правки, а не документа.
+    // Правка в одном элементе не должна выделять память порядка размера документа
+    @Test
+    public void testIncrementalUpdateCostDependsOnEditSize() {
+        StringBuilder document = new StringBuilder("<root>");
+        for (int i = 0; document.length() < 4_000_000; i++) {
+            document.append("<item n=\"").append(i).append("\"><name>name ").append(i).append("</name><v/></item>");
+        }
+        String xml = document.append("</root>").toString();
+        IncrementalXmlFormatter formatter = new IncrementalXmlFormatter(2);
+        formatter.format(xml);
+
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long maxBytes = 0;
+        for (int n = 0; n < 20; n++) {
+            int start = xml.indexOf("<name>", xml.length() / 20 * n) + "<name>".length();
+            int end = xml.indexOf('<', start);
+            String next = xml.substring(0, start) + "edit " + n + xml.substring(end);
+            long bytes = threads.getThreadAllocatedBytes(thread);
+            formatter.update(next, start, end, start + ("edit " + n).length());
+            maxBytes = Math.max(maxBytes, threads.getThreadAllocatedBytes(thread) - bytes);
+            xml = next;
+        }
+        assertEquals(XmlPrettyPrinter.formatString(xml), formatter.update(xml, 0, 0, 0).toString());
+        assertTrue(maxBytes < xml.length() / 4, "One edit allocated " + maxBytes + " bytes");
+    }
+
+    // Тестирует метрики слушателя: размеры, число токенов по типам, глубину и исправления в режиме восстановления
+    @Test
+    public void testFormatListenerReportsMetrics() {
+        String xml = "<root><a><b>text</b><c>t</root></stray><x><y>";
+        List<FormatMetrics> reports = new ArrayList<>();
+        String result = new RepairXmlFormatter(2, reports::add).format(xml);
+
+        assertEquals(1, reports.size());
+        FormatMetrics metrics = reports.get(0);
+        assertEquals("RepairXmlFormatter", metrics.formatter());
+        assertEquals(xml.length(), metrics.inputChars());
+        assertEquals(result.length(), metrics.outputChars());
+        assertEquals(6, metrics.tokenCount(XmlToken.TokenType.OPENING_TAG));
+        assertEquals(3, metrics.tokenCount(XmlToken.TokenType.CLOSING_TAG));
+        assertEquals(2, metrics.tokenCount(XmlToken.TokenType.TEXT));
+        assertEquals(3, metrics.maxDepth());
+        assertEquals(3, metrics.autoClosedTags());
+        assertEquals(1, metrics.droppedClosingTags());
+        assertTrue(metrics.lexNanos() >= 0 && metrics.emitNanos() >= 0);
+        assertEquals(XmlPrettyPrinter.formatString(xml, true), result);
+    }
+
+    // Тестирует событие JFR: при запущенной записи каждый вызов format оставляет событие prettyprint.Format
+    @Test
+    public void testFormatEmitsFlightRecorderEvent() throws IOException {
+        Path dump = Files.createTempFile("format", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("prettyprint.Format");
+            recording.start();
+            new SimpleXmlFormatter(2).format("<root><child>text</child></root>");
+            recording.stop();
+            recording.dump(dump);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+            assertEquals(1, events.size());
+            assertEquals("SimpleXmlFormatter", events.get(0).getString("formatter"));
+            assertEquals(5, events.get(0).getLong("tokens"));
+            assertEquals(2, events.get(0).getInt("maxDepth"));
+        } finally {
+            Files.deleteIfExists(dump);
+        }
+    }
+
+    // Тестирует общий форматтер: один экземпляр из нескольких потоков даёт те же результаты, что и отдельные экземпляры
+    @Test
+    public void testSharedFormatterIsThreadSafe() throws Exception {
+        XmlFormatter shared = XmlPrettyPrinter.formatter(true, 2);
+        assertSame(shared, XmlPrettyPrinter.formatter(true, 2));
+        String[] documents = new String[8];
+        String[] expected = new String[documents.length];
+        for (int i = 0; i < documents.length; i++) {
+            StringBuilder xml = new StringBuilder("<root>");
+            for (int j = 0; j <= i * 50; j++) {
+                xml.append("<item n=\"").append(j).append("\"><a>").append(j).append(i % 2 == 0 ? "</a></item>" : "</item>");
+            }
+            documents[i] = xml.append("</stray>").toString();
+            expected[i] = new RepairXmlFormatter(2).format(documents[i]);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int offset = t;
+                results.add(executor.submit(() -> {
+                    for (int n = 0; n < 200; n++) {
+                        int i = (n + offset) % documents.length;
+                        if (!expected[i].equals(shared.format(documents[i]))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Документ с многобайтовыми символами для байтового режима
+    private static final String ENCODED_XML = "<?xml version=\"1.0\"?><root><name>данные &amp; €</name><emoji>😀</emoji>"
+            + "<empty/></root>";
+
+    // Тестирует байтовый режим: UTF-8 совпадает со строковым путём байт в байт
+    @Test
+    public void testFormatBytesKeepsEncoding() {
+        assertArrayEquals(XmlPrettyPrinter.formatString(ENCODED_XML).getBytes(StandardCharsets.UTF_8),
+                XmlPrettyPrinter.formatBytes(ENCODED_XML.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Тестирует байтовый режим для прямого буфера: позиция входа не меняется
+    @Test
+    public void testFormatDirectByteBuffer() {
+        byte[] utf8 = ENCODED_XML.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(utf8.length);
+        direct.put(utf8).flip();
+        ByteBuffer result = XmlPrettyPrinter.formatBytes(direct, false, 2);
+        assertEquals(0, direct.position());
+        assertEquals(XmlPrettyPrinter.formatString(ENCODED_XML), StandardCharsets.UTF_8.decode(result).toString());
+    }
+
+    // Тестирует метку порядка байтов: она сохраняется в результате
+    @Test
+    public void testFormatBytesKeepsByteOrderMark() {
+        byte[] withMark = ("\uFEFF" + ENCODED_XML).getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(("\uFEFF" + XmlPrettyPrinter.formatString(ENCODED_XML)).getBytes(StandardCharsets.UTF_8),
+                XmlPrettyPrinter.formatBytes(withMark));
+    }
+
+    // Тестирует кодировки из объявления XML и UTF-16: результат в той же кодировке
+    @Test
+    public void testFormatBytesInDeclaredEncodingAndUtf16() {
+        Charset cp1251 = Charset.forName("windows-1251");
+        String declared = "<?xml version=\"1.0\" encoding='windows-1251'?><root><name>данные</name></root>";
+        assertArrayEquals(XmlPrettyPrinter.formatString(declared).getBytes(cp1251),
+                XmlPrettyPrinter.formatBytes(declared.getBytes(cp1251)));
+        assertArrayEquals(XmlPrettyPrinter.formatString(ENCODED_XML).getBytes(StandardCharsets.UTF_16LE),
+                XmlPrettyPrinter.formatBytes(ENCODED_XML.getBytes(StandardCharsets.UTF_16LE)));
+    }
+
+    // Тестирует неизвестную и некорректную кодировку в объявлении: байты форматируются как UTF-8, как и строка
+    @Test
+    public void testFormatBytesWithUnknownDeclaredEncoding() {
+        for (String encoding : new String[]{"no-such-charset", "bad name!", ""}) {
+            String xml = "<?xml version=\"1.0\" encoding=\"" + encoding + "\"?><root><name>данные</name></root>";
+            byte[] expected = XmlPrettyPrinter.formatString(xml).getBytes(StandardCharsets.UTF_8);
+            byte[] utf8 = xml.getBytes(StandardCharsets.UTF_8);
+            assertArrayEquals(expected, XmlPrettyPrinter.formatBytes(utf8));
+            ByteBuffer result = XmlPrettyPrinter.formatBytes(ByteBuffer.wrap(utf8), false, 2);
+            assertEquals(ByteBuffer.wrap(expected), result);
+        }
+    }
+
+    // Документ для запусков командной строки
+    private static final String CLI_XML = "<root><child>text</child></root>";
+
+    // Запуск командной строки с заданным stdin; вывод и ошибки копятся в out и err
+    private static int runMain(String[] args, String stdin, ByteArrayOutputStream out, ByteArrayOutputStream err) {
+        return Main.run(args, new ByteArrayInputStream(stdin.getBytes(StandardCharsets.UTF_8)),
+                new PrintStream(out), new PrintStream(err));
+    }
+
+    // Тестирует командную строку как фильтр stdin -> stdout
+    @Test
+    public void testCommandLineFilter() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(Main.EXIT_OK, runMain(new String[]{"-i", "4"}, "<a><b>x</b></a>", out, new ByteArrayOutputStream()));
+        assertEquals("<a>\n    <b>x</b>\n</a>", out.toString());
+    }
+
+    // Тестирует командную строку: файлы, шаблоны и список файлов из stdin форматируются на месте в одном запуске
+    @Test
+    public void testCommandLineFiles(@TempDir Path dir) throws IOException {
+        Files.createDirectories(dir.resolve("sub"));
+        for (String name : new String[]{"a.xml", "b.xml", "sub/c.xml", "sub/d.txt", "listed.xml"}) {
+            Files.writeString(dir.resolve(name), CLI_XML);
+        }
+        int code = runMain(new String[]{"-@", dir.resolve("a.xml").toString(), dir + "/sub/*.xml"},
+                dir.resolve("listed.xml") + "\n\n", new ByteArrayOutputStream(), new ByteArrayOutputStream());
+        assertEquals(Main.EXIT_OK, code);
+        String formatted = XmlPrettyPrinter.formatString(CLI_XML);
+        assertEquals(formatted, Files.readString(dir.resolve("a.xml")));
+        assertEquals(formatted, Files.readString(dir.resolve("sub/c.xml")));
+        assertEquals(formatted, Files.readString(dir.resolve("listed.xml")));
+        assertEquals(CLI_XML, Files.readString(dir.resolve("b.xml")));
+        assertEquals(CLI_XML, Files.readString(dir.resolve("sub/d.txt")));
+    }
+
+    // Тестирует ошибку в одном из файлов: остальные форматируются, код выхода ненулевой, имя файла в stderr
+    @Test
+    public void testCommandLineMissingFile(@TempDir Path dir) throws IOException {
+        Files.writeString(dir.resolve("b.xml"), CLI_XML);
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int code = runMain(new String[]{dir.toString(), dir.resolve("missing.xml").toString()}, "",
+                new ByteArrayOutputStream(), err);
+        assertEquals(Main.EXIT_FAILED, code);
+        assertEquals(XmlPrettyPrinter.formatString(CLI_XML), Files.readString(dir.resolve("b.xml")));
+        assertTrue(err.toString().contains("missing.xml"));
+    }
+
+    // Тестирует неверные аргументы командной строки
+    @Test
+    public void testCommandLineUsage() {
+        assertEquals(Main.EXIT_USAGE, runMain(new String[]{"--indent"}, "",
+                new ByteArrayOutputStream(), new ByteArrayOutputStream()));
+    }
+
+    // Документ для проверок gzip
+    private static final String GZIP_XML = "<root><child>данные</child></root>";
+
+    // Сжатый файл с GZIP_XML
+    private static Path gzipFile(Path dir) throws IOException {
+        return Files.write(dir.resolve("format.xml.gz"), Gzip.compress(GZIP_XML.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Тестирует gzip на входе: сжатый файл и поток распознаются по заголовку
+    @Test
+    public void testGzipInput(@TempDir Path dir) throws IOException {
+        Path compressed = gzipFile(dir);
+        String expected = XmlPrettyPrinter.formatString(GZIP_XML);
+        assertEquals(expected, XmlPrettyPrinter.formatFile(compressed.toString()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(compressed)) {
+            XmlPrettyPrinter.format(in, out);
+        }
+        assertEquals(expected, out.toString(StandardCharsets.UTF_8));
+    }
+
+    // Тестирует gzip на выходе: результат сжимается только для имён на ".gz"
+    @Test
+    public void testGzipOutput(@TempDir Path dir) throws IOException {
+        Path compressed = gzipFile(dir);
+        String expected = XmlPrettyPrinter.formatString(GZIP_XML);
+        Path plainOutput = dir.resolve("format-out.xml");
+        XmlPrettyPrinter.formatFileToFile(compressed.toString(), plainOutput.toString());
+        assertEquals(expected, Files.readString(plainOutput));
+
+        Path compressedOutput = dir.resolve("format-out.xml.gz");
+        XmlPrettyPrinter.formatFileToFile(compressed.toString(), compressedOutput.toString(), false, 2, 0);
+        byte[] written = Files.readAllBytes(compressedOutput);
+        assertTrue(Gzip.isGzip(written));
+        assertEquals(expected, new String(Gzip.decompress(written), StandardCharsets.UTF_8));
+    }
+
+    // Тестирует форматирование сжатого файла на месте: файл остаётся сжатым
+    @Test
+    public void testGzipInPlace(@TempDir Path dir) throws IOException {
+        Path compressed = gzipFile(dir);
+        XmlPrettyPrinter.formatFileInPlace(compressed.toString(), false, 2);
+        byte[] inPlace = Files.readAllBytes(compressed);
+        assertTrue(Gzip.isGzip(inPlace));
+        assertEquals(XmlPrettyPrinter.formatString(GZIP_XML), new String(Gzip.decompress(inPlace), StandardCharsets.UTF_8));
+    }
+
+    // Тестирует минификацию смешанного содержимого: пробелы между словами и тегами не склеивают слова
+    @Test
+    public void testMinifyMixedContent() {
+        String xml = "<p>Hello <b>world</b> again</p>";
+        assertEquals(xml, new MinifyXmlFormatter(false).format(xml));
+        assertEquals(xml, new MinifyXmlFormatter(false).format("<p>Hello\n  <b>world</b>\t again</p>\n"));
+        assertEquals("<p>Hello<b>world</b>again</p>", new MinifyXmlFormatter(false).format("<p>Hello<b>world</b>again</p>"));
+        // При автозакрытии тег с текстом в строку закрывается после текста, но пробел остаётся
+        assertEquals("<p>a</p> <i>b</i> c", XmlPrettyPrinter.minifyString("<p>a <i>b</i> c", true));
+        // Пробельный текст между тегами по-прежнему отбрасывается
+        assertEquals("<r><a/><b/></r>", XmlPrettyPrinter.minifyString("<r>\n  <a/>\n  <b/>\n</r>"));
+        // Отброшенный фильтром комментарий не склеивает слова вокруг себя
+        FormatOptions noComments = FormatOptions.DEFAULT.withTokenFilter(XmlTokenFilter.dropComments());
+        assertEquals("<p>a b</p>", new MinifyXmlFormatter(noComments, null).format("<p>a <!-- c --> b</p>"));
+    }
+
+    // Документ с отступами для минификации и его ожидаемый компактный вид
+    private static final String INDENTED_XML = "<?xml version=\"1.0\"?>\n<root a=\"1\">\n  <!-- note -->\n"
+            + "  <item>  Tom &amp; Jerry  </item>\n  <empty/>\n  <![CDATA[ raw ]]>\n</root>\n";
+    private static final String MINIFIED_XML = "<?xml version=\"1.0\"?><root a=\"1\"><!-- note --><item> Tom &amp; Jerry </item>"
+            + "<empty/><![CDATA[ raw ]]></root>";
+
+    // Тестирует минификацию: пробелы между тегами убираются, по краям текста сжимаются в один, сущности не экранируются
+    // повторно, компактный вход не меняется
+    @Test
+    public void testMinify() {
+        assertEquals(MINIFIED_XML, XmlPrettyPrinter.minifyString(INDENTED_XML));
+        assertEquals(MINIFIED_XML, XmlPrettyPrinter.minifyString(MINIFIED_XML));
+    }
+
+    // Тестирует минификацию с автозакрытием по тем же правилам, что у форматтера
+    @Test
+    public void testMinifyWithAutoClose() {
+        assertEquals("<root><a>text</a> <b><c/></b></root>",
+                XmlPrettyPrinter.minifyString("<root>\n  <a>text\n  <b>\n    <c/>\n</root>", true));
+        assertEquals("<root></root>", XmlPrettyPrinter.minifyString("<root></stray></root>", true));
+    }
+
+    // Тестирует потоковую и байтовую минификацию
+    @Test
+    public void testMinifyStreamAndBytes() throws IOException {
+        StringWriter streamed = new StringWriter();
+        XmlPrettyPrinter.minify(new StringReader(INDENTED_XML), streamed, false);
+        assertEquals(MINIFIED_XML, streamed.toString());
+        assertArrayEquals(MINIFIED_XML.getBytes(StandardCharsets.UTF_8),
+                XmlPrettyPrinter.minifyBytes(INDENTED_XML.getBytes(StandardCharsets.UTF_8), false));
+    }
+
+    // Тестирует минификацию файла: в сжатый файл по имени на ".gz" и на месте
+    @Test
+    public void testMinifyFile(@TempDir Path dir) throws IOException {
+        Path input = Files.writeString(dir.resolve("minify.xml"), INDENTED_XML);
+        Path output = dir.resolve("minify-out.xml.gz");
+        XmlPrettyPrinter.minifyFile(input.toString(), output.toString());
+        assertEquals(MINIFIED_XML, new String(Gzip.decompress(Files.readAllBytes(output)), StandardCharsets.UTF_8));
+        XmlPrettyPrinter.minifyFile(input.toString(), input.toString());
+        assertEquals(MINIFIED_XML, Files.readString(input));
+    }
+
+    // Тестирует отказ от отрицательных настроек сразу при создании FormatOptions, а не при форматировании
+    @Test
+    public void testNegativeOptionsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> FormatOptions.DEFAULT.withIndent(-1));
+        assertThrows(IllegalArgumentException.class, () -> FormatOptions.DEFAULT.withMaxIndentDepth(-1));
+        assertThrows(IllegalArgumentException.class, () -> FormatOptions.DEFAULT.withMaxNesting(-1));
+        assertThrows(IllegalArgumentException.class, () -> FormatOptions.DEFAULT.withMaxOutputChars(-1));
+        assertThrows(IllegalArgumentException.class, () -> XmlPrettyPrinter.formatString("<a/>", false, -2));
+    }
+
+    // Четыре уровня вложенности для ограничений
+    private static final String NESTED_XML = "<a><b><c><d>text</d></c></b></a>";
+
+    // Глубина 5000: с отступами результат занял бы 50 млн символов
+    private static final String DEEP_XML = "<a>".repeat(5000) + "</a>".repeat(5000);
+
+    // Ограничение размера результата в десять входов
+    private static final FormatOptions OUTPUT_LIMITED = FormatOptions.DEFAULT.withMaxOutputChars(10L * DEEP_XML.length());
+
+    // Тестирует табуляцию вместо пробелов и выравнивание отступа после maxIndentDepth
+    @Test
+    public void testTabsAndMaxIndentDepth() {
+        assertEquals("<a>\n\t<b>\n\t\t<c>\n\t\t\t<d>text</d>\n\t\t</c>\n\t</b>\n</a>",
+                XmlPrettyPrinter.formatString(NESTED_XML, FormatOptions.DEFAULT.withTabs()));
+        assertEquals("<a>\n  <b>\n    <c>\n    <d>text</d>\n    </c>\n  </b>\n</a>",
+                XmlPrettyPrinter.formatString(NESTED_XML, FormatOptions.DEFAULT.withMaxIndentDepth(2)));
+    }
+
+    // Тестирует превышение вложенности: типизированное исключение с местом во входе, в том числе при автозакрытии
+    @Test
+    public void testMaxNesting() {
+        XmlLimitExceededException nesting = assertThrows(XmlLimitExceededException.class,
+                () -> XmlPrettyPrinter.formatString(NESTED_XML, FormatOptions.DEFAULT.withMaxNesting(3)));
+        assertEquals(XmlLimitExceededException.Limit.NESTING, nesting.limit());
+        assertEquals(9, nesting.inputPosition());
+        assertThrows(XmlLimitExceededException.class, () -> XmlPrettyPrinter.formatString(NESTED_XML,
+                FormatOptions.DEFAULT.withAutoCloseTags(true).withMaxNesting(3)));
+        assertEquals(XmlPrettyPrinter.formatString(NESTED_XML),
+                XmlPrettyPrinter.formatString(NESTED_XML, FormatOptions.DEFAULT.withMaxNesting(4)));
+    }
+
+    // Тестирует превышение размера результата: исключение или компактный вид по выбору
+    @Test
+    public void testMaxOutputChars() {
+        XmlLimitExceededException size = assertThrows(XmlLimitExceededException.class,
+                () -> XmlPrettyPrinter.formatString(DEEP_XML, OUTPUT_LIMITED));
+        assertEquals(XmlLimitExceededException.Limit.OUTPUT_SIZE, size.limit());
+        assertEquals(DEEP_XML, XmlPrettyPrinter.formatString(DEEP_XML, OUTPUT_LIMITED.withCompactOnOverflow(true)));
+        assertTrue(XmlPrettyPrinter.formatString(DEEP_XML, OUTPUT_LIMITED.withMaxIndentDepth(8)).length()
+                < 10L * DEEP_XML.length());
+    }
+
+    // Тестирует превышение размера результата при форматировании файла в файл
+    @Test
+    public void testMaxOutputCharsForFile(@TempDir Path dir) throws IOException {
+        Path input = Files.writeString(dir.resolve("deep.xml"), DEEP_XML);
+        Path output = dir.resolve("deep-out.xml");
+        XmlPrettyPrinter.formatFileToFile(input.toString(), output.toString(), OUTPUT_LIMITED.withCompactOnOverflow(true));
+        assertEquals(DEEP_XML, Files.readString(output));
+        assertThrows(XmlLimitExceededException.class,
+                () -> XmlPrettyPrinter.formatFileToFile(input.toString(), output.toString(), OUTPUT_LIMITED));
+    }
+
+    // Документ для неблокирующего API: многобайтовые символы, незакрытые тег и комментарий
+    private static final String PUBLISHED_XML = "<?xml version=\"1.0\"?><root><name>данные &amp; €</name><!-- c --><open>\n  text"
+            + "<![CDATA[ <x> ]]><emoji>😀</emoji><!--<empty/></root>";
+
+    // Тестирует неблокирующий API: документ, разрезанный на части по байту и посреди многобайтовых символов,
+    // форматируется так же, как целиком; у источника запрашивается по одной части, пока подписчик не забрал результат
+    @Test
+    public void testFormatPublisher() {
+        byte[] utf8 = PUBLISHED_XML.getBytes(StandardCharsets.UTF_8);
+        for (boolean autoCloseTags : new boolean[]{false, true}) {
+            FormatOptions options = FormatOptions.DEFAULT.withAutoCloseTags(autoCloseTags);
+            byte[] expected = XmlPrettyPrinter.formatter(options).format(utf8);
+            for (int size : new int[]{1, 7, utf8.length}) {
+                int[] demand = new int[2];
+                ByteArrayOutputStream result = new ByteArrayOutputStream();
+                XmlPrettyPrinter.format(publish(utf8, size, demand), options).subscribe(new Flow.Subscriber<>() {
+                    private Flow.Subscription subscription;
+
+                    @Override
+                    public void onSubscribe(Flow.Subscription subscription) {
+                        this.subscription = subscription;
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer chunk) {
+                        result.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                        subscription.request(1);
+                    }
+
+                    @Override
+                    public void onError(Throwable error) {
+                        fail(error);
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        result.write('$');
+                    }
+                });
+                assertEquals(new String(expected, StandardCharsets.UTF_8) + "$", result.toString(StandardCharsets.UTF_8));
+                assertEquals(1, demand[1], "Parts requested ahead of the subscriber");
+            }
+        }
+    }
+
+    // Тестирует асинхронное форматирование на отдельном потоке: кодировка определяется по первым частям
+    @Test
+    public void testFormatAsyncOnExecutor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            byte[] utf16 = PUBLISHED_XML.getBytes(StandardCharsets.UTF_16LE);
+            assertArrayEquals(XmlPrettyPrinter.formatBytes(utf16), XmlPrettyPrinter.formatAsync(
+                    publish(utf16, 3, new int[2]), FormatOptions.DEFAULT, executor).get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Тестирует превышение ограничения при асинхронном форматировании: исключение приходит причиной в future
+    @Test
+    public void testFormatAsyncLimitExceeded() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            byte[] deep = ("<a>".repeat(100) + "</a>".repeat(100)).getBytes(StandardCharsets.UTF_8);
+            ExecutionException error = assertThrows(ExecutionException.class,
+                    () -> XmlPrettyPrinter.formatAsync(publish(deep, 64, new int[2]), FormatOptions.DEFAULT.withMaxNesting(10),
+                            executor).get(10, TimeUnit.SECONDS));
+            assertInstanceOf(XmlLimitExceededException.class, error.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Тестирует неблокирующий API минификатора: он не продолжает документ с места, поэтому копит части
+    // и даёт тот же результат, что и format(byte[]), по-прежнему запрашивая у источника по одной части
+    @Test
+    public void testMinifyPublisher() throws Exception {
+        byte[] utf8 = PUBLISHED_XML.getBytes(StandardCharsets.UTF_8);
+        XmlFormatter minify = new MinifyXmlFormatter(true);
+        int[] demand = new int[2];
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        minify.format(publish(utf8, 7, demand)).subscribe(new Flow.Subscriber<>() {
+            private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer chunk) {
+                bytes.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                result.completeExceptionally(error);
+            }
+
+            @Override
+            public void onComplete() {
+                result.complete(bytes.toByteArray());
+            }
+        });
+        assertArrayEquals(minify.format(utf8), result.get(10, TimeUnit.SECONDS));
+        assertEquals(1, demand[1], "Parts requested ahead of the formatter");
+    }
+
+    // Документ для фильтра токенов и он же с заранее убранным отброшенным
+    private static final String FILTERED_XML = "<root><a><!-- c -->text</a><secret id=\"1\"><b>x</b><secret/><c/></secret>"
+            + "<password type=\"plain\">123</password><![CDATA[ big ]]><!-- tail --><d>y</d></root>";
+    private static final String CLEANED_XML = "<root><a>TEXT</a><password type=\"plain\"/><![CDATA[ big ]]><d>Y</d></root>";
+
+    // Фильтр, который убирает комментарии и secret, сокращает password и переводит текст в верхний регистр
+    private static FormatOptions filtered(FormatOptions options) {
+        XmlTokenFilter upperText = token -> token.type == XmlToken.TokenType.TEXT
+                ? new XmlToken(token.content.toUpperCase(), token.type) : token;
+        return options.withTokenFilter(XmlTokenFilter.dropComments()
+                .andThen(XmlTokenFilter.skipElements("secret"))
+                .andThen(XmlTokenFilter.redactElements("password"))
+                .andThen(upperText));
+    }
+
+    // Тестирует фильтр токенов: результат совпадает с форматированием документа, из которого отброшенное
+    // убрано заранее, - и текст в строку после отброшенного комментария
+    @Test
+    public void testTokenFilter() {
+        for (boolean autoCloseTags : new boolean[]{false, true}) {
+            FormatOptions options = FormatOptions.DEFAULT.withAutoCloseTags(autoCloseTags);
+            assertEquals(XmlPrettyPrinter.formatString(CLEANED_XML, options),
+                    XmlPrettyPrinter.formatString(FILTERED_XML, filtered(options)));
+        }
+    }
+
+    // Тестирует фильтр токенов в потоковом, байтовом и асинхронном форматировании
+    @Test
+    public void testTokenFilterInStreamingPaths() throws Exception {
+        for (boolean autoCloseTags : new boolean[]{false, true}) {
+            FormatOptions options = FormatOptions.DEFAULT.withAutoCloseTags(autoCloseTags);
+            String expected = XmlPrettyPrinter.formatString(CLEANED_XML, options);
+            StringWriter out = new StringWriter();
+            XmlPrettyPrinter.format(new StringReader(FILTERED_XML), out, filtered(options));
+            assertEquals(expected, out.toString());
+
+            byte[] bytes = FILTERED_XML.getBytes(StandardCharsets.UTF_8);
+            assertEquals(expected, new String(XmlPrettyPrinter.formatter(filtered(options)).format(bytes),
+                    StandardCharsets.UTF_8));
+            assertEquals(expected, new String(XmlPrettyPrinter.formatAsync(publish(bytes, 1, new int[2]),
+                    filtered(options), Runnable::run).get(), StandardCharsets.UTF_8));
+        }
+    }
+
+    // Тестирует фильтр токенов при сжатии
+    @Test
+    public void testTokenFilterInMinify() {
+        for (boolean autoCloseTags : new boolean[]{false, true}) {
+            FormatOptions options = FormatOptions.DEFAULT.withAutoCloseTags(autoCloseTags);
+            assertEquals(new MinifyXmlFormatter(options, null).format(CLEANED_XML),
+                    new MinifyXmlFormatter(filtered(options), null).format(FILTERED_XML));
+        }
+    }
+
+    // Тестирует отбрасывание длинных CDATA
+    @Test
+    public void testDropLongCdata() {
+        assertEquals("<root>\n  <a/>\n</root>", XmlPrettyPrinter.formatString("<root><a/><![CDATA[ 12345 ]]></root>",
+                FormatOptions.DEFAULT.withTokenFilter(XmlTokenFilter.dropCdataLongerThan(5))));
+    }
+
+    // Тестирует незакрытый пропущенный элемент: он уносит с собой остаток документа
+    @Test
+    public void testSkipUnclosedElement() {
+        assertEquals("<root>\n  <a/>\n</root>", XmlPrettyPrinter.formatString("<root><a/><secret><b>text</b>",
+                FormatOptions.DEFAULT.withAutoCloseTags(true).withTokenFilter(XmlTokenFilter.skipElements("secret"))));
+    }
+
+    // Документ с BOM, многострочным комментарием и незакрытым тегом для постраничного просмотра
+    private static final String PREVIEWED_XML = "\uFEFF<?xml version=\"1.0\"?><root><item id=\"1\">данные</item>"
+            + "<!-- два\nряда --><list><a/><b>текст</b><c>1</c></list><open>" + "<x>y</x>".repeat(50);
+
+    // Тестирует первую страницу: maxLines строк и открытые теги в продолжении
+    @Test
+    public void testPreviewFirstPage(@TempDir Path dir) throws IOException {
+        Path file = Files.writeString(dir.resolve("test.xml"), PREVIEWED_XML);
+        XmlPreview first = XmlPrettyPrinter.preview(file.toString(), 3);
+        assertEquals(List.of("<?xml version=\"1.0\"?>", "<root>", "  <item id=\"1\">данные</item>"), first.lines());
+        assertEquals(List.of("root"), first.next().openTags());
+    }
+
+    // Тестирует продолжение: страница кончается в начале строки, многострочный комментарий не режется,
+    // и продолжение можно использовать повторно
+    @Test
+    public void testPreviewNextPage(@TempDir Path dir) throws IOException {
+        Path file = Files.writeString(dir.resolve("test.xml"), PREVIEWED_XML);
+        XmlPreview first = XmlPrettyPrinter.preview(file.toString(), 3);
+        XmlPreview second = XmlPrettyPrinter.preview(file.toString(), first.next(), 3);
+        assertEquals(List.of("  <!-- два", "ряда -->", "  <list>", "    <a/>"), second.lines());
+        assertEquals(List.of("root", "list"), second.next().openTags());
+        assertEquals(second.lines(), XmlPrettyPrinter.preview(file.toString(), first.next(), 3).lines());
+    }
+
+    // Тестирует страницы подряд: тот же текст, что и форматирование всего файла
+    @Test
+    public void testPreviewPagesMatchFormatString(@TempDir Path dir) throws IOException {
+        Path file = Files.writeString(dir.resolve("test.xml"), PREVIEWED_XML);
+        for (boolean autoCloseTags : new boolean[]{false, true}) {
+            FormatOptions options = FormatOptions.DEFAULT.withAutoCloseTags(autoCloseTags);
+            List<String> lines = new ArrayList<>();
+            XmlPreview page = XmlPrettyPrinter.preview(file.toString(), 7, options);
+            lines.addAll(page.lines());
+            while (page.next() != null) {
+                page = XmlPrettyPrinter.preview(file.toString(), page.next(), 7, options);
+                lines.addAll(page.lines());
+            }
+            assertEquals(XmlPrettyPrinter.formatString(PREVIEWED_XML.substring(1), options), String.join("\n", lines));
+        }
+    }
+
+    // Тестирует отказ просмотра при пустой странице и для сжатого файла
+    @Test
+    public void testPreviewRejectsZeroLinesAndGzipFile(@TempDir Path dir) throws IOException {
+        Path file = Files.writeString(dir.resolve("test.xml"), PREVIEWED_XML);
+        assertThrows(IllegalArgumentException.class, () -> XmlPrettyPrinter.preview(file.toString(), 0));
+        Files.write(file, Gzip.compress(PREVIEWED_XML.getBytes(StandardCharsets.UTF_8)));
+        assertThrows(UnsupportedOperationException.class, () -> XmlPrettyPrinter.preview(file.toString(), 3));
+    }
+
+    // Документ, чей результат занимает три куска ChunkedText
+    private static final String CHUNKED_XML = "<root>" + "<a>".repeat(300) + "данные" + "</a>".repeat(300) + "<b/></root>";
+
+    // Тестирует результат в кусках: тот же текст, что у formatString
+    @Test
+    public void testChunkedTextMatchesFormatString() {
+        String expected = XmlPrettyPrinter.formatString(CHUNKED_XML);
+        ChunkedText chunked = XmlPrettyPrinter.formatter(FormatOptions.DEFAULT).formatChunked(CHUNKED_XML);
+        assertTrue(expected.length() > 2 * ChunkedText.CHUNK_SIZE);
+        assertEquals(expected.length(), chunked.longLength());
+        assertEquals(expected, chunked.toString());
+        assertEquals(0, XmlPrettyPrinter.formatter(FormatOptions.DEFAULT).formatChunked("  ").longLength());
+    }
+
+    // Тестирует доступ по индексу на границе кусков и за концом текста
+    @Test
+    public void testChunkedTextIndexAcrossChunks() {
+        String expected = XmlPrettyPrinter.formatString(CHUNKED_XML);
+        ChunkedText chunked = XmlPrettyPrinter.formatter(FormatOptions.DEFAULT).formatChunked(CHUNKED_XML);
+        int boundary = ChunkedText.CHUNK_SIZE;
+        assertEquals(expected.charAt(boundary), chunked.charAt((long) boundary));
+        assertEquals(expected.substring(boundary - 5, boundary + 5), chunked.subSequence(boundary - 5, boundary + 5).toString());
+        assertThrows(IndexOutOfBoundsException.class, () -> chunked.charAt(chunked.longLength()));
+    }
+
+    // Тестирует обход по кускам без склейки: куски только для чтения, все, кроме последнего, полные
+    @Test
+    public void testChunkedTextChunks() {
+        ChunkedText chunked = XmlPrettyPrinter.formatter(FormatOptions.DEFAULT).formatChunked(CHUNKED_XML);
+        List<CharBuffer> chunks = chunked.chunks();
+        assertEquals(3, chunks.size());
+        assertEquals(ChunkedText.CHUNK_SIZE, chunks.get(0).remaining());
+        assertTrue(chunks.get(0).isReadOnly());
+        StringBuilder joined = new StringBuilder();
+        chunks.forEach(joined::append);
+        assertEquals(XmlPrettyPrinter.formatString(CHUNKED_XML), joined.toString());
+    }
+
+    // Тестирует запись результата в кусках в Writer и в канал
+    @Test
+    public void testChunkedTextWriteTo() throws IOException {
+        String expected = XmlPrettyPrinter.formatString(CHUNKED_XML);
+        ChunkedText chunked = XmlPrettyPrinter.formatter(FormatOptions.DEFAULT).formatChunked(CHUNKED_XML);
+        StringWriter writer = new StringWriter();
+        chunked.writeTo(writer);
+        assertEquals(expected, writer.toString());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        chunked.writeTo(Channels.newChannel(bytes), StandardCharsets.UTF_8);
+        assertEquals(expected, bytes.toString(StandardCharsets.UTF_8));
+    }
+
+    // Тестирует форматирование файла в кусках: тот же результат, что у formatFile
+    @Test
+    public void testFormatFileChunked(@TempDir Path dir) throws IOException {
+        Path file = Files.writeString(dir.resolve("test.xml"), "  " + CHUNKED_XML + "\n\n");
+        assertEquals(XmlPrettyPrinter.formatString(CHUNKED_XML), XmlPrettyPrinter.formatFileChunked(file.toString()).toString());
+        assertEquals(XmlPrettyPrinter.formatFile(file.toString(), true),
+                XmlPrettyPrinter.formatFileChunked(file.toString(), FormatOptions.DEFAULT.withAutoCloseTags(true)).toString());
+    }
+
+    // Документ с незакрытым тегом для проверки файлов
+    private static final String CHECKED_XML = "<root><item id=\"1\">данные</item><list><a/><open></list></root>";
+
+    // Тестирует проверку без построения результата: отформатированный файл проходит, исходный - нет
+    @Test
+    public void testCheckFileMatchesFormatFile(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("test.xml");
+        for (boolean autoCloseTags : new boolean[]{false, true}) {
+            Files.writeString(file, CHECKED_XML);
+            assertFalse(XmlPrettyPrinter.isFormatted(file.toString(), autoCloseTags));
+            Files.writeString(file, XmlPrettyPrinter.formatFile(file.toString(), autoCloseTags));
+            assertTrue(XmlPrettyPrinter.isFormatted(file.toString(), autoCloseTags));
+            assertEquals("formatted", XmlPrettyPrinter.checkFile(file.toString(), autoCloseTags).toString());
+        }
+    }
+
+    // Тестирует место первого отличия: строка, столбец и смещение
+    @Test
+    public void testCheckFileReportsFirstDifference(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("test.xml");
+        for (boolean autoCloseTags : new boolean[]{false, true}) {
+            String formatted = XmlPrettyPrinter.formatString(CHECKED_XML,
+                    FormatOptions.DEFAULT.withAutoCloseTags(autoCloseTags));
+            Files.writeString(file, formatted.replace("  <list>", "   <list>"));
+            FormatCheck check = XmlPrettyPrinter.checkFile(file.toString(), autoCloseTags);
+            assertFalse(check.isFormatted());
+            assertEquals(3, check.line());
+            assertEquals(3, check.column());
+            assertEquals(formatted.indexOf("  <list>") + 2, check.offset());
+        }
+    }
+
+    // Тестирует лишний хвост: отличие сразу за концом результата
+    @Test
+    public void testCheckFileWithTrailingText(@TempDir Path dir) throws IOException {
+        String formatted = XmlPrettyPrinter.formatString(CHECKED_XML);
+        Path file = Files.writeString(dir.resolve("test.xml"), formatted + "\n");
+        FormatCheck check = XmlPrettyPrinter.checkFile(file.toString(), false);
+        assertEquals(formatted.length(), check.offset());
+        assertEquals(formatted.split("\n").length, check.line());
+    }
+
+    // Тестирует проверку сжатого и пустого файла
+    @Test
+    public void testCheckGzipAndEmptyFile(@TempDir Path dir) throws IOException {
+        Path file = Files.write(dir.resolve("test.xml"),
+                Gzip.compress(XmlPrettyPrinter.formatString(CHECKED_XML).getBytes(StandardCharsets.UTF_8)));
+        assertTrue(XmlPrettyPrinter.isFormatted(file.toString()));
+        Files.writeString(file, "");
+        assertTrue(XmlPrettyPrinter.isFormatted(file.toString()));
+    }
+
+    // Документ с BOM и объявлением для индекса элементов
+    private static final String INDEXED_XML = "\uFEFF<?xml version=\"1.0\"?><root><записи><r id=\"1\">данные</r><!-- c -->"
+            + "<r><a>1</a></r><r/></записи><other><r>x</r></other></root>";
+
+    // Тестирует индекс элементов: элемент форматируется отдельно с тем же отступом, что и во всём файле
+    @Test
+    public void testFormatIndexedElement(@TempDir Path dir) throws IOException {
+        Path file = Files.writeString(dir.resolve("test.xml"), INDEXED_XML);
+        Path index = dir.resolve("test.idx");
+        assertEquals(4, XmlPrettyPrinter.indexElements(file.toString(), index.toString(), 2));
+        assertEquals("    <r id=\"1\">данные</r>", XmlPrettyPrinter.formatElement(file.toString(), index.toString(), 0));
+        assertEquals("    <r>\n      <a>1</a>\n    </r>",
+                XmlPrettyPrinter.formatElement(file.toString(), index.toString(), 1));
+        assertEquals("    <r/>", XmlPrettyPrinter.formatElement(file.toString(), index.toString(), 2));
+    }
+
+    // Тестирует открытый индекс: открытые теги каждого элемента и совпадение с форматированием всего файла
+    @Test
+    public void testOpenElementIndex(@TempDir Path dir) throws IOException {
+        Path file = Files.writeString(dir.resolve("test.xml"), INDEXED_XML);
+        Path index = dir.resolve("test.idx");
+        XmlPrettyPrinter.indexElements(file.toString(), index.toString(), 2);
+        String full = XmlPrettyPrinter.formatString(INDEXED_XML.substring(1));
+        try (XmlElementIndex opened = XmlElementIndex.open(index)) {
+            assertEquals(4, opened.size());
+            assertEquals(List.of("root", "записи"), opened.element(0).openTags());
+            assertEquals(List.of("root", "other"), opened.element(3).openTags());
+            for (long n = 0; n < opened.size(); n++) {
+                assertTrue(full.contains("\n" + opened.format(file, n, FormatOptions.DEFAULT) + "\n"));
+            }
+            assertThrows(IndexOutOfBoundsException.class, () -> opened.element(4));
+        }
+    }
+
+    // Тестирует индекс на глубине 0: единственный элемент - корень без объявления
+    @Test
+    public void testElementIndexOfRoot(@TempDir Path dir) throws IOException {
+        Path file = Files.writeString(dir.resolve("test.xml"), INDEXED_XML);
+        Path index = dir.resolve("test.idx");
+        assertEquals(1, XmlPrettyPrinter.indexElements(file.toString(), index.toString(), 0));
+        String full = XmlPrettyPrinter.formatString(INDEXED_XML.substring(1));
+        assertEquals(full.substring(full.indexOf("<root>")),
+                XmlPrettyPrinter.formatElement(file.toString(), index.toString(), 0));
+    }
+
+    // Тестирует отказ индекса для изменённого после индексации и для сжатого файла
+    @Test
+    public void testElementIndexRejectsChangedAndGzipFile(@TempDir Path dir) throws IOException {
+        Path file = Files.writeString(dir.resolve("test.xml"), INDEXED_XML);
+        Path index = dir.resolve("test.idx");
+        XmlPrettyPrinter.indexElements(file.toString(), index.toString(), 2);
+        Files.writeString(file, INDEXED_XML + " ");
+        assertThrows(IllegalStateException.class,
+                () -> XmlPrettyPrinter.formatElement(file.toString(), index.toString(), 0));
+        Files.write(file, Gzip.compress(INDEXED_XML.getBytes(StandardCharsets.UTF_8)));
+        assertThrows(UnsupportedOperationException.class,
+                () -> XmlPrettyPrinter.indexElements(file.toString(), index.toString(), 1));
+    }
+
+    // Тестирует неизвестную кодировку в объявлении при асинхронном форматировании: результат как у formatBytes
+    @Test
+    public void testFormatAsyncWithUnknownDeclaredEncoding() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"bad name!\"?><root><name>данные</name></root>";
+        byte[] utf8 = xml.getBytes(StandardCharsets.UTF_8);
+        byte[] result = XmlPrettyPrinter.formatAsync(publish(utf8, 5, new int[2]), FormatOptions.DEFAULT, Runnable::run)
+                .get(10, TimeUnit.SECONDS);
+        assertArrayEquals(XmlPrettyPrinter.formatBytes(utf8), result);
+    }
+
+    // Синхронный источник частей по size байт. demand[0] - запрошено и ещё не отдано, demand[1] - максимум этого числа
+    private static Flow.Publisher<ByteBuffer> publish(byte[] bytes, int size, int[] demand) {
+        return subscriber -> subscriber.onSubscribe(new Flow.Subscription() {
+            private int position;
+            private boolean emitting;
+
+            @Override
+            public void request(long n) {
+                demand[0] += (int) n;
+                demand[1] = Math.max(demand[1], demand[0]);
+                if (emitting) {
+                    return;
+                }
+                emitting = true;
+                while (demand[0] > 0 && position < bytes.length) {
+                    demand[0]--;
+                    int length = Math.min(size, bytes.length - position);
+                    subscriber.onNext(ByteBuffer.wrap(bytes, position, length).slice());
+                    position += length;
+                }
+                if (position == bytes.length) {
+                    position++;
+                    subscriber.onComplete();
+                }
+                emitting = false;
+            }
+
+            @Override
+            public void cancel() {
+                position = bytes.length + 1;
+            }
+        });
+    }
+}
@@ -0,0 +1,71 @@
+package prettyprint;
+
+import org.junit.jupiter.api.Test;
+import java.util.List;
+import java.util.NoSuchElementException;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class XmlTokenizerTest {
+
+    // Тестирует определение типов всех видов токенов
+    @Test
+    public void testTokenTypes() {
+        String xml = "<?xml version=\"1.0\"?><!-- c --><root a=\"1\"><![CDATA[x]]><br/> text </root>";
+        List<XmlToken> tokens = new XmlTokenizer().tokenize(xml);
+
+        assertEquals(7, tokens.size());
+        assertEquals(XmlToken.TokenType.XML_DECLARATION, tokens.get(0).type);
+        assertEquals(XmlToken.TokenType.COMMENT, tokens.get(1).type);
+        assertEquals(XmlToken.TokenType.OPENING_TAG, tokens.get(2).type);
+        assertEquals(XmlToken.TokenType.CDATA, tokens.get(3).type);
+        assertEquals(XmlToken.TokenType.SELF_CLOSING_TAG, tokens.get(4).type);
+        assertEquals(XmlToken.TokenType.TEXT, tokens.get(5).type);
+        assertEquals("text", tokens.get(5).content);
+        assertEquals(XmlToken.TokenType.CLOSING_TAG, tokens.get(6).type);
+    }
+
+    // Тестирует многострочные комментарии и CDATA, которые должны оставаться одним токеном
+    @Test
+    public void testMultiLineCommentAndCdata() {
+        String xml = "<root><!-- line1\n<b>line2</b> --><![CDATA[a\n<c>\nb]]></root>";
+        List<XmlToken> tokens = new XmlTokenizer().tokenize(xml);
+
+        assertEquals(4, tokens.size());
+        assertEquals(XmlToken.TokenType.COMMENT, tokens.get(1).type);
+        assertEquals("<!-- line1\n<b>line2</b> -->", tokens.get(1).content);
+        assertEquals(XmlToken.TokenType.CDATA, tokens.get(2).type);
+        assertEquals("<![CDATA[a\n<c>\nb]]>", tokens.get(2).content);
+    }
+
+    // Тестирует, что одиночный '<' без '>' пропускается, а длинные серии таких символов не замедляют разбор
+    @Test
+    public void testUnterminatedAngleBrackets() {
+        List<XmlToken> tokens = new XmlTokenizer().tokenize("a < b");
+        assertEquals(2, tokens.size());
+        assertEquals("a", tokens.get(0).content);
+        assertEquals("b", tokens.get(1).content);
+
+        String xml = "<".repeat(200_000) + "tail";
+        tokens = new XmlTokenizer().tokenize(xml);
+        assertEquals(1, tokens.size());
+        assertEquals("tail", tokens.get(0).content);
+    }
+
+    // Тестирует курсор: просмотр вперёд не сдвигает позицию, next() возвращает токены по порядку
+    @Test
+    public void testCursorPeekAndNext() {
+        XmlTokenCursor cursor = new XmlTokenizer().cursor("<a>x</a>");
+
+        assertEquals("<a>", cursor.peek().content);
+        assertEquals("x", cursor.peek(1).content);
+        assertEquals("</a>", cursor.peek(2).content);
+        assertNull(cursor.peek(3));
+
+        assertEquals("<a>", cursor.next().content);
+        assertEquals("x", cursor.next().content);
+        assertEquals("</a>", cursor.next().content);
+        assertFalse(cursor.hasNext());
+        assertThrows(NoSuchElementException.class, cursor::next);
+        assertThrows(IllegalArgumentException.class, () -> cursor.peek(XmlTokenCursor.MAX_LOOKAHEAD));
+    }
+}
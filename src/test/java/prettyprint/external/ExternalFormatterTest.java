@@ -0,0 +1,184 @@
+package prettyprint.external;
+
+import org.junit.jupiter.api.Test;
+import prettyprint.FormatOptions;
+import prettyprint.XmlFormatter;
+import prettyprint.XmlOutput;
+import prettyprint.XmlToken;
+import prettyprint.XmlTokenCursor;
+import prettyprint.XmlTokenizer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.*;
+
+// Подкласс XmlFormatter вне пакета prettyprint: точка расширения должна оставаться доступной
+public class ExternalFormatterTest {
+
+    // Каждый токен на своей строке, без отступов
+    private static class OnePerLineFormatter extends XmlFormatter {
+        OnePerLineFormatter() {
+            this(FormatOptions.DEFAULT);
+        }
+
+        OnePerLineFormatter(FormatOptions options) {
+            super(options, null);
+        }
+
+        @Override
+        protected void format(XmlTokenCursor tokens, XmlOutput out) throws IOException {
+            while (tokens.hasNext()) {
+                XmlToken token = tokens.next();
+                if (!out.isEmpty()) {
+                    out.newline();
+                }
+                out.append(token.content);
+            }
+        }
+    }
+
+    // Тестирует внешний форматтер на строке и на потоке
+    @Test
+    public void testExternalFormatter() throws IOException {
+        XmlFormatter formatter = new OnePerLineFormatter();
+        assertEquals("<a>\ntext\n</a>", formatter.format("<a> text </a>"));
+
+        StringWriter out = new StringWriter();
+        formatter.format(new StringReader("<a><b/></a>"), out);
+        assertEquals("<a>\n<b/>\n</a>", out.toString());
+    }
+
+    // Подкласс в старом стиле: переопределяет только format(String) и сам собирает токены в список
+    private static class LegacyFormatter extends XmlFormatter {
+        @Override
+        public String format(String xml) {
+            List<XmlToken> tokens = tokenizer.tokenize(xml);
+            StringBuilder result = new StringBuilder();
+            int level = 0;
+            for (int i = 0; i < tokens.size(); i++) {
+                XmlToken token = tokens.get(i);
+                if (token.isEmpty()) {
+                    continue;
+                }
+                if (token.type == XmlToken.TokenType.CLOSING_TAG) {
+                    level--;
+                }
+                if (result.length() > 0) {
+                    result.append('\n');
+                }
+                result.append(getIndent(level)).append(token.content.trim());
+                if (token.type == XmlToken.TokenType.OPENING_TAG) {
+                    level++;
+                }
+            }
+            return result.toString();
+        }
+    }
+
+    // Тестирует подкласс, который переопределяет только format(String): потоковый и байтовый пути
+    // дают тот же результат, что и строка
+    @Test
+    public void testLegacyFormatterOverridingFormatString() throws IOException {
+        XmlFormatter formatter = new LegacyFormatter();
+        String xml = "<a>\n  <b> text </b><!-- c --><d/></a>";
+        String expected = "<a>\n  <b>\n    text\n  </b>\n  <!-- c -->\n  <d/>\n</a>";
+        assertEquals(expected, formatter.format(xml));
+
+        StringWriter out = new StringWriter();
+        formatter.format(new StringReader(xml), out);
+        assertEquals(expected, out.toString());
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), formatter.format(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // Тестирует неблокирующий API у внешних форматтеров: части копятся, результат как у format(byte[])
+    @Test
+    public void testExternalFormatterPublisher() throws Exception {
+        byte[] xml = "<a>\n  <b> text </b><!-- c --><d/></a>".getBytes(StandardCharsets.UTF_8);
+        for (XmlFormatter formatter : new XmlFormatter[]{new OnePerLineFormatter(), new LegacyFormatter()}) {
+            assertArrayEquals(formatter.format(xml), formatParts(formatter, xml, 5));
+        }
+    }
+
+    // Отдаёт xml форматтеру частями по size байт и собирает результат
+    private static byte[] formatParts(XmlFormatter formatter, byte[] xml, int size) throws Exception {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        try (SubmissionPublisher<ByteBuffer> source = new SubmissionPublisher<>(Runnable::run, 16)) {
+            formatter.format(source).subscribe(new Flow.Subscriber<>() {
+                private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(ByteBuffer chunk) {
+                    bytes.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    result.completeExceptionally(error);
+                }
+
+                @Override
+                public void onComplete() {
+                    result.complete(bytes.toByteArray());
+                }
+            });
+            for (int position = 0; position < xml.length; position += size) {
+                source.submit(ByteBuffer.wrap(xml, position, Math.min(size, xml.length - position)).slice());
+            }
+        }
+        return result.get(10, TimeUnit.SECONDS);
+    }
+
+    // Тестирует подкласс без обоих методов форматирования: понятная ошибка вместо бесконечной рекурсии
+    @Test
+    public void testFormatterWithoutFormatMethod() {
+        XmlFormatter formatter = new XmlFormatter() {
+        };
+        assertThrows(UnsupportedOperationException.class, () -> formatter.format("<a/>"));
+    }
+
+    // Тестирует getIndent, доступный подклассам: ширина, табуляция и предел глубины из FormatOptions
+    @Test
+    public void testGetIndent() {
+        assertEquals("      ", new IndentProbe(FormatOptions.DEFAULT.withIndent(3)).getIndent(2));
+        assertEquals("\t\t", new IndentProbe(FormatOptions.DEFAULT.withTabs().withMaxIndentDepth(2)).getIndent(5));
+        assertEquals("", new IndentProbe(FormatOptions.DEFAULT).getIndent(-1));
+    }
+
+    // Тестирует просмотр вперёд по списку токенов из XmlTokenizer.tokenize, доступный подклассам
+    @Test
+    public void testNextNonEmptyTokenTextInList() {
+        List<XmlToken> tokens = new XmlTokenizer().tokenize("<a><!-- c -->text</a><b><c/></b>");
+        IndentProbe probe = new IndentProbe(FormatOptions.DEFAULT);
+        assertTrue(probe.isNextNonEmptyTokenText(tokens, 0));
+        assertFalse(probe.isNextNonEmptyTokenText(tokens, 4));
+    }
+
+    private static class IndentProbe extends OnePerLineFormatter {
+        IndentProbe(FormatOptions options) {
+            super(options);
+        }
+
+        @Override
+        public String getIndent(int level) {
+            return super.getIndent(level);
+        }
+
+        @Override
+        public boolean isNextNonEmptyTokenText(List<XmlToken> tokens, int currentIndex) {
+            return super.isNextNonEmptyTokenText(tokens, currentIndex);
+        }
+    }
+}